@@ -0,0 +1,44 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import dev.thatcherclough.climessage.EmailUtils;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CarrierBenchmark {
+
+	private String page;
+
+	/**
+	 * Reads "fonefinder.html", a result page laid out like the ones fonefinder.net
+	 * returns.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		try (InputStream in = getClass().getResourceAsStream("/fonefinder.html");
+				Scanner scanner = new Scanner(in, StandardCharsets.UTF_8.name()).useDelimiter("\\A")) {
+			page = scanner.next();
+		}
+	}
+
+	/**
+	 * Parses the result page and extracts the carrier with
+	 * {@link EmailUtils#parseCarrier(org.jsoup.nodes.Document)}.
+	 */
+	@Benchmark
+	public String parseCarrier() {
+		return EmailUtils.parseCarrier(Jsoup.parse(page));
+	}
+}
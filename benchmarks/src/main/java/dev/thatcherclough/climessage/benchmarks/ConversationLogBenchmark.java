@@ -0,0 +1,76 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import dev.thatcherclough.climessage.ConversationLog;
+import dev.thatcherclough.climessage.MessageWindow;
+import dev.thatcherclough.climessage.Messenger;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversationLogBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int lines;
+
+	private File file;
+	private final PrintStream screen = new PrintStream(new ByteArrayOutputStream() {
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+		}
+	});
+
+	@Setup
+	public void setUp() throws Exception {
+		file = File.createTempFile("Benchmark-5551234567", ".convo");
+		try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			for (int k = 0; k < lines; k++) {
+				out.write(ConversationLog.format("message number " + k + " of the benchmark conversation",
+						k % 2 == 0 ? "sent" : "received"));
+				out.newLine();
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Loads the last page of the log into a {@link MessageWindow}, as the
+	 * {@link Messenger} constructor does.
+	 */
+	@Benchmark
+	public List<String> loadLastPage() throws Exception {
+		MessageWindow messages = new MessageWindow(200);
+		for (String message : new ConversationLog(file).readOlder(10))
+			messages.addOldest(message);
+		return messages.get(0, 10);
+	}
+
+	/**
+	 * Loads the last page of the log and draws it once with
+	 * {@link Messenger#drawHistory(String, PrintStream)}.
+	 */
+	@Benchmark
+	public void drawHistory() throws Exception {
+		Messenger.drawHistory(file.getPath(), screen);
+	}
+}
@@ -0,0 +1,93 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import dev.thatcherclough.climessage.EmailUtils;
+import dev.thatcherclough.climessage.ReceivedEmail;
+import dev.thatcherclough.climessage.SyncState;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImapBenchmark {
+
+	private static final String SENDER = "5551234567";
+
+	@Param({ "1", "20" })
+	public int arrived;
+
+	private GreenMail greenMail;
+	private GreenMailUser user;
+	private Store store;
+	private Folder inbox;
+	private SyncState state;
+	private int sequence = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		greenMail = LocalMail.start();
+		user = greenMail.getManagers().getUserManager().getUser(LocalMail.ADDRESS);
+		store = EmailUtils.imapSession(LocalMail.account()).getStore("imaps");
+		store.connect(LocalMail.ADDRESS, LocalMail.PASSWORD);
+		inbox = store.getFolder("INBOX");
+		inbox.open(Folder.READ_ONLY);
+		state = SyncState.get(LocalMail.ADDRESS);
+	}
+
+	/**
+	 * Delivers {@link #arrived} new messages, half of them from {@link #SENDER},
+	 * so every call of {@link #recEmail()} has new email to receive.
+	 */
+	@Setup(Level.Invocation)
+	public void deliver() throws Exception {
+		Session session = Session.getInstance(System.getProperties());
+		for (int k = 0; k < arrived; k++) {
+			MimeMessage message = new MimeMessage(session);
+			message.setFrom(new InternetAddress((k % 2 == 0 ? SENDER : "5557654321") + "@vtext.com"));
+			message.setRecipients(Message.RecipientType.TO, LocalMail.ADDRESS);
+			message.setText("message " + sequence++);
+			message.saveChanges();
+			user.deliver(message);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		inbox.close(false);
+		store.close();
+		greenMail.stop();
+	}
+
+	/**
+	 * Receives the new email from {@link #SENDER} with
+	 * {@link EmailUtils#recEmail(Folder, SyncState, java.util.Collection,
+	 * ReceivedEmail.Handler)}.
+	 */
+	@Benchmark
+	public List<ReceivedEmail> recEmail() throws Exception {
+		inbox.getMessageCount();
+		List<ReceivedEmail> ret = new ArrayList<ReceivedEmail>();
+		EmailUtils.recEmail(inbox, state, Collections.singletonList(SENDER), ret::add);
+		return ret;
+	}
+}
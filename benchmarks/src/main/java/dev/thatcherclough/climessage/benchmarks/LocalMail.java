@@ -0,0 +1,123 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import dev.thatcherclough.climessage.Account;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+public class LocalMail {
+
+	public static final String ADDRESS = "benchmark@localhost";
+	public static final String PASSWORD = "benchmark";
+	private static final long STARTUP_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Starts a GreenMail SMTPS and IMAPS server on localhost with account
+	 * {@link #ADDRESS} and points CLImessage at it through settings "smtp.host",
+	 * "smtp.port", "imap.host", and "imap.port".
+	 * <p>
+	 * GreenMail uses a self-signed certificate, so the default
+	 * {@link SSLContext} is replaced by one that trusts every certificate. Also
+	 * creates directory "userdata" in the working directory for sync state.
+	 *
+	 * @return GreenMail started server
+	 * @throws GeneralSecurityException
+	 */
+	public static GreenMail start() throws GeneralSecurityException {
+		trustAll();
+		GreenMail greenMail = new GreenMail(ServerSetupTest.SMTPS_IMAPS);
+		greenMail.start();
+		greenMail.setUser(ADDRESS, ADDRESS, PASSWORD);
+		System.setProperty("climessage.smtp.host", "127.0.0.1");
+		System.setProperty("climessage.smtp.port", Integer.toString(ServerSetupTest.SMTPS.getPort()));
+		System.setProperty("climessage.imap.host", "127.0.0.1");
+		System.setProperty("climessage.imap.port", Integer.toString(ServerSetupTest.IMAPS.getPort()));
+		new File("userdata").mkdir();
+		return greenMail;
+	}
+
+	/**
+	 * Gets the account of the server started by {@link #start()}.
+	 *
+	 * @return Account {@link #ADDRESS}
+	 */
+	public static Account account() {
+		return new Account(ADDRESS, PASSWORD);
+	}
+
+	/**
+	 * Starts {@link count} GreenMail SMTPS and IMAPS servers on localhost, each on
+	 * ports of its own with one account, and writes the accounts to
+	 * "userdata/creds.properties" as "account.1.address" and so on, so
+	 * {@link dev.thatcherclough.climessage.AccountRing#load()} reads them.
+	 *
+	 * @param count number of servers to start
+	 * @return List of the started servers in the order of their accounts
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	public static List<GreenMail> startAccounts(int count) throws GeneralSecurityException, IOException {
+		trustAll();
+		new File("userdata").mkdir();
+		List<GreenMail> ret = new ArrayList<GreenMail>();
+		Properties creds = new Properties();
+		for (int k = 1; k <= count; k++) {
+			int smtpPort = ServerSetupTest.SMTPS.getPort() + 10 * k;
+			int imapPort = ServerSetupTest.IMAPS.getPort() + 10 * k;
+			ServerSetup[] setups = { new ServerSetup(smtpPort, "127.0.0.1", ServerSetup.PROTOCOL_SMTPS),
+					new ServerSetup(imapPort, "127.0.0.1", ServerSetup.PROTOCOL_IMAPS) };
+			for (ServerSetup setup : setups)
+				setup.setServerStartupTimeout(STARTUP_TIMEOUT_MILLIS);
+			GreenMail greenMail = new GreenMail(setups);
+			greenMail.start();
+			String address = "benchmark" + k + "@localhost";
+			greenMail.setUser(address, address, PASSWORD);
+			String prefix = "account." + k + ".";
+			creds.setProperty(prefix + "address", address);
+			creds.setProperty(prefix + "password", PASSWORD);
+			creds.setProperty(prefix + "smtp.host", "127.0.0.1");
+			creds.setProperty(prefix + "smtp.port", Integer.toString(smtpPort));
+			creds.setProperty(prefix + "imap.host", "127.0.0.1");
+			creds.setProperty(prefix + "imap.port", Integer.toString(imapPort));
+			ret.add(greenMail);
+		}
+		try (OutputStream out = new FileOutputStream("userdata" + File.separator + "creds.properties")) {
+			creds.store(out, null);
+		}
+		return ret;
+	}
+
+	/**
+	 * Replaces the default {@link SSLContext} by one that trusts every
+	 * certificate, since GreenMail uses a self-signed one.
+	 *
+	 * @throws GeneralSecurityException
+	 */
+	private static void trustAll() throws GeneralSecurityException {
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new X509TrustManager() {
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		} }, null);
+		SSLContext.setDefault(context);
+	}
+}
@@ -0,0 +1,79 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import dev.thatcherclough.climessage.MessageWindow;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageWindowBenchmark {
+
+	private static final int CAPACITY = 200;
+
+	private final MessageWindow window = new MessageWindow(CAPACITY);
+	private final List<String> list = Collections.synchronizedList(new ArrayList<String>());
+	private int sequence = 0;
+
+	/**
+	 * Adds a message to the {@link MessageWindow} ring while
+	 * {@link #windowRead()} reads pages from it.
+	 */
+	@Benchmark
+	@Group("window")
+	@GroupThreads(1)
+	public void windowWrite() {
+		window.add("message " + sequence++);
+	}
+
+	/**
+	 * Reads the newest page of the {@link MessageWindow} without locking.
+	 */
+	@Benchmark
+	@Group("window")
+	@GroupThreads(2)
+	public List<String> windowRead() {
+		return window.get(0, 10);
+	}
+
+	/**
+	 * Adds a message to a synchronized {@link ArrayList}, trimmed to the same
+	 * capacity by removing its oldest message, as the messages were held before
+	 * {@link MessageWindow}.
+	 */
+	@Benchmark
+	@Group("list")
+	@GroupThreads(1)
+	public void listWrite() {
+		synchronized (list) {
+			list.add("message " + sequence++);
+			if (list.size() > CAPACITY)
+				list.remove(0);
+		}
+	}
+
+	/**
+	 * Copies the newest page of the synchronized {@link ArrayList}.
+	 */
+	@Benchmark
+	@Group("list")
+	@GroupThreads(2)
+	public List<String> listRead() {
+		synchronized (list) {
+			List<String> page = new ArrayList<String>(10);
+			for (int k = list.size() - 1; k >= 0 && page.size() < 10; k--)
+				page.add(list.get(k));
+			return page;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import dev.thatcherclough.climessage.BodyExtractor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MimeBenchmark {
+
+	@Param({ "plain", "alternative", "attachment" })
+	public String shape;
+
+	private final Session session = Session.getInstance(new Properties());
+	private byte[] raw;
+
+	/**
+	 * Builds the raw bytes of an email as a carrier gateway would deliver it:
+	 * plain text, text with an HTML alternative, or text with a 1 MiB
+	 * attachment.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress("5551234567@vtext.com"));
+		message.setRecipients(Message.RecipientType.TO, "benchmark@localhost");
+		String text = "See you at dinner tonight?";
+		if (shape.equals("plain"))
+			message.setText(text);
+		else {
+			MimeMultipart multipart = new MimeMultipart(shape.equals("alternative") ? "alternative" : "mixed");
+			MimeBodyPart plain = new MimeBodyPart();
+			plain.setText(text);
+			multipart.addBodyPart(plain);
+			MimeBodyPart other = new MimeBodyPart();
+			if (shape.equals("alternative"))
+				other.setContent("<html><body><p>" + text + "</p></body></html>", "text/html; charset=utf-8");
+			else {
+				other.setDataHandler(new DataHandler(new ByteArrayDataSource(new byte[1 << 20], "image/jpeg")));
+				other.setFileName("photo.jpg");
+			}
+			multipart.addBodyPart(other);
+			message.setContent(multipart);
+		}
+		message.saveChanges();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		message.writeTo(out);
+		raw = out.toByteArray();
+	}
+
+	/**
+	 * Parses the email and extracts its text with
+	 * {@link BodyExtractor#extract(javax.mail.Part)}.
+	 */
+	@Benchmark
+	public String extract() throws Exception {
+		return BodyExtractor.extract(new MimeMessage(session, new ByteArrayInputStream(raw)));
+	}
+}
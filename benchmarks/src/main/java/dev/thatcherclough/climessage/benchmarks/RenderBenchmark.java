@@ -0,0 +1,61 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import dev.thatcherclough.climessage.ConversationLog;
+import dev.thatcherclough.climessage.Renderer;
+import dev.thatcherclough.climessage.Workers;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenderBenchmark {
+
+	private final ByteArrayOutputStream screen = new ByteArrayOutputStream();
+	private Renderer renderer;
+	private final List<List<String>> pages = new ArrayList<List<String>>();
+	private int next = 0;
+
+	/**
+	 * Builds pages the way a conversation scrolls when a message arrives: each
+	 * page is the previous one shifted down by one line with a new line on top.
+	 */
+	@Setup
+	public void setUp() {
+		renderer = new Renderer(new String[] { "Press CTRL + C to exit.", "Type a message and press ENTER to send:" },
+				10, new PrintStream(screen));
+		List<String> lines = new ArrayList<String>();
+		for (int k = 0; k < 64; k++)
+			lines.add(ConversationLog.format("message number " + k, k % 2 == 0 ? "sent" : "received"));
+		for (int k = 0; k + 10 <= lines.size(); k++)
+			pages.add(lines.subList(k, k + 10));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Workers.shutdown(0);
+	}
+
+	/**
+	 * Draws the next page, as dispMessages does when a message arrives, into an
+	 * in-memory stream.
+	 */
+	@Benchmark
+	public int dispMessages() throws Exception {
+		screen.reset();
+		renderer.setMessages(pages.get(next++ % pages.size()));
+		renderer.flush();
+		return screen.size();
+	}
+}
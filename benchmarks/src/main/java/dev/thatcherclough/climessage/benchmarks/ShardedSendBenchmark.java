@@ -0,0 +1,68 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import com.icegreen.greenmail.util.GreenMail;
+import dev.thatcherclough.climessage.AccountRing;
+import dev.thatcherclough.climessage.SmtpPool;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class ShardedSendBenchmark {
+
+	private static final int RECIPIENTS = 64;
+	private static final String RATE_PER_MINUTE = "600";
+
+	@Param({ "1", "2", "4" })
+	public int accounts;
+
+	private List<GreenMail> servers;
+	private AccountRing ring;
+	private final AtomicInteger next = new AtomicInteger();
+
+	@Setup
+	public void setUp() throws Exception {
+		System.setProperty("climessage.send.rate.per.minute", RATE_PER_MINUTE);
+		servers = LocalMail.startAccounts(accounts);
+		ring = AccountRing.load();
+		ring.warm();
+	}
+
+	@TearDown(Level.Iteration)
+	public void purge() throws Exception {
+		for (GreenMail server : servers)
+			server.purgeEmailFromAllMailboxes();
+	}
+
+	@TearDown
+	public void tearDown() {
+		SmtpPool.closeAll();
+		for (GreenMail server : servers)
+			server.stop();
+	}
+
+	/**
+	 * Sends a message to one of {@link #RECIPIENTS} recipients with
+	 * {@link AccountRing#send(String, String)}, with every account limited to
+	 * {@link #RATE_PER_MINUTE} messages per minute, so the throughput is bound by
+	 * the number of accounts the recipients are spread over.
+	 */
+	@Benchmark
+	public void send() throws Exception {
+		ring.send("555000" + String.format("%04d", next.getAndIncrement() % RECIPIENTS) + "@localhost", "benchmark");
+	}
+}
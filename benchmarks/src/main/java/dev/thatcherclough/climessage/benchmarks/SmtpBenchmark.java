@@ -0,0 +1,78 @@
+package dev.thatcherclough.climessage.benchmarks;
+
+import com.icegreen.greenmail.util.GreenMail;
+import dev.thatcherclough.climessage.Account;
+import dev.thatcherclough.climessage.EmailUtils;
+import dev.thatcherclough.climessage.SmtpPool;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SmtpBenchmark {
+
+	private static final String RECIPIENT = "5551234567@localhost";
+
+	private GreenMail greenMail;
+	private Account account;
+
+	@Setup
+	public void setUp() throws Exception {
+		greenMail = LocalMail.start();
+		account = LocalMail.account();
+	}
+
+	@TearDown(Level.Iteration)
+	public void purge() throws Exception {
+		greenMail.purgeEmailFromAllMailboxes();
+	}
+
+	@TearDown
+	public void tearDown() {
+		SmtpPool.closeAll();
+		greenMail.stop();
+	}
+
+	/**
+	 * Sends a message with {@link EmailUtils#sendEmail(Account, String, String)},
+	 * which reuses an authenticated transport of {@link SmtpPool}.
+	 */
+	@Benchmark
+	public void sendPooled() throws Exception {
+		EmailUtils.sendEmail(account, RECIPIENT, "benchmark");
+	}
+
+	/**
+	 * Sends a message on a new session and transport, connecting and
+	 * authenticating for every message as CLImessage did before {@link SmtpPool}.
+	 */
+	@Benchmark
+	public void sendUnpooled() throws Exception {
+		Session session = EmailUtils.smtpSession(account);
+		Message message = new MimeMessage(session);
+		message.setFrom(new InternetAddress(LocalMail.ADDRESS));
+		message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(RECIPIENT));
+		message.setText("benchmark");
+		Transport transport = session.getTransport("smtp");
+		transport.connect(LocalMail.ADDRESS, LocalMail.PASSWORD);
+		try {
+			transport.sendMessage(message, message.getAllRecipients());
+		} finally {
+			transport.close();
+		}
+	}
+}
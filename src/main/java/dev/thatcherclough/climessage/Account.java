@@ -0,0 +1,257 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+public class Account {
+
+	private static final File file = new File("userdata" + File.separator + "creds.properties");
+	private static final long DAY_NANOS = TimeUnit.DAYS.toNanos(1);
+	private static final long THROTTLE_NANOS = TimeUnit.MINUTES
+			.toNanos(Settings.getLong("account.throttle.minutes", 15));
+
+	private final String address;
+	private final String password;
+	private final String smtpHost;
+	private final String smtpPort;
+	private final String imapHost;
+	private final String imapPort;
+	private final long ratePerMinute;
+	private final long quotaPerDay;
+	private long dayStarted = System.nanoTime();
+	private long sentToday = 0;
+	private long throttledUntil = System.nanoTime();
+
+	/**
+	 * Constructs a new Account for G-Mail address {@link address} on the hosts and
+	 * ports of settings "smtp.host", "smtp.port", "imap.host", and "imap.port",
+	 * with the limits of settings "send.rate.per.minute" and
+	 * "send.quota.per.day".
+	 *
+	 * @param address  G-Mail address
+	 * @param password password to {@link address}
+	 */
+	public Account(String address, String password) {
+		this(address, password, new Properties(), "");
+	}
+
+	/**
+	 * Constructs a new Account for address {@link address} from the properties of
+	 * {@link properties} starting with {@link prefix}, such as "smtp.host".
+	 * Properties that are not set default to the setting of the same name.
+	 *
+	 * @param address    email address
+	 * @param password   password to {@link address}
+	 * @param properties properties of the account
+	 * @param prefix     prefix of the properties of the account
+	 */
+	private Account(String address, String password, Properties properties, String prefix) {
+		this.address = address;
+		this.password = password;
+		smtpHost = properties.getProperty(prefix + "smtp.host", Settings.get("smtp.host", "smtp.gmail.com"));
+		smtpPort = properties.getProperty(prefix + "smtp.port", Settings.get("smtp.port", "465"));
+		imapHost = properties.getProperty(prefix + "imap.host", Settings.get("imap.host", "imap.gmail.com"));
+		imapPort = properties.getProperty(prefix + "imap.port", Settings.get("imap.port", "993"));
+		ratePerMinute = Long.parseLong(properties.getProperty(prefix + "rate.per.minute",
+				Long.toString(Settings.getLong("send.rate.per.minute", 0))).trim());
+		quotaPerDay = Long.parseLong(properties.getProperty(prefix + "quota.per.day",
+				Long.toString(Settings.getLong("send.quota.per.day", 0))).trim());
+	}
+
+	/**
+	 * Reads the accounts in "userdata/creds.properties".
+	 * <p>
+	 * Accounts are numbered from 1 as "account.1.address", "account.1.password",
+	 * and optionally "account.1.smtp.host", "account.1.smtp.port",
+	 * "account.1.imap.host", "account.1.imap.port", "account.1.rate.per.minute",
+	 * and "account.1.quota.per.day". A file with only "address" and "password",
+	 * as written by the initial setup, is read as a single account.
+	 *
+	 * @return List of the accounts in the order they are numbered
+	 * @throws IOException if the file cannot be read or has no account
+	 */
+	public static List<Account> load() throws IOException {
+		Properties creds = new Properties();
+		try (FileInputStream in = new FileInputStream(file)) {
+			creds.load(in);
+		}
+		List<Account> ret = new ArrayList<Account>();
+		for (int k = 1; creds.getProperty("account." + k + ".address") != null; k++) {
+			String prefix = "account." + k + ".";
+			ret.add(new Account(creds.getProperty(prefix + "address"), creds.getProperty(prefix + "password", ""),
+					creds, prefix));
+		}
+		if (ret.isEmpty() && creds.getProperty("address") != null)
+			ret.add(new Account(creds.getProperty("address"), creds.getProperty("password", "")));
+		if (ret.isEmpty())
+			throw new IOException("No account in " + file.getPath());
+		return ret;
+	}
+
+	/**
+	 * Gets the email address of the account.
+	 *
+	 * @return String email address
+	 */
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * Gets the password of the account.
+	 *
+	 * @return String password
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * Gets the host to send email through.
+	 *
+	 * @return String SMTP host
+	 */
+	public String getSmtpHost() {
+		return smtpHost;
+	}
+
+	/**
+	 * Gets the port of {@link #getSmtpHost()}.
+	 *
+	 * @return String SMTP port
+	 */
+	public String getSmtpPort() {
+		return smtpPort;
+	}
+
+	/**
+	 * Gets the host to read the inbox on.
+	 *
+	 * @return String IMAP host
+	 */
+	public String getImapHost() {
+		return imapHost;
+	}
+
+	/**
+	 * Gets the port of {@link #getImapHost()}.
+	 *
+	 * @return String IMAP port
+	 */
+	public String getImapPort() {
+		return imapPort;
+	}
+
+	/**
+	 * Gets the maximum number of emails sent from the account per minute.
+	 *
+	 * @return long emails per minute, or 0 for no limit
+	 */
+	public long getRatePerMinute() {
+		return ratePerMinute;
+	}
+
+	/**
+	 * Takes one email of the daily quota of the account if it is not throttled.
+	 * <p>
+	 * The quota is counted from the first email of a day, in memory, so it
+	 * starts over when CLImessage is restarted.
+	 *
+	 * @return boolean true if an email may be sent from the account now
+	 */
+	public synchronized boolean reserve() {
+		long now = System.nanoTime();
+		if (now - throttledUntil < 0)
+			return false;
+		if (now - dayStarted >= DAY_NANOS) {
+			dayStarted = now;
+			sentToday = 0;
+		}
+		if (quotaPerDay > 0 && sentToday >= quotaPerDay)
+			return false;
+		sentToday++;
+		return true;
+	}
+
+	/**
+	 * Gives back the email taken with {@link #reserve()} when it could not be
+	 * sent.
+	 */
+	public synchronized void refund() {
+		if (sentToday > 0)
+			sentToday--;
+	}
+
+	/**
+	 * Stops sending from the account for setting "account.throttle.minutes" (15)
+	 * minutes.
+	 */
+	public synchronized void throttle() {
+		throttledUntil = System.nanoTime() + THROTTLE_NANOS;
+	}
+
+	/**
+	 * Checks whether {@link e} means the server refused an email because the
+	 * account sent too much, such as the "421", "450", "451", "452", and "454"
+	 * replies to the sender and "550 5.4.5" of G-Mail, or a reply that mentions a
+	 * quota or rate limit. Refused recipients do not count.
+	 *
+	 * @param e error of sending an email
+	 * @return boolean true if the account is throttled
+	 */
+	public static boolean isThrottled(MessagingException e) {
+		for (Exception cause = e; cause != null; cause = cause instanceof MessagingException
+				? ((MessagingException) cause).getNextException()
+				: null) {
+			if (cause instanceof SMTPAddressFailedException)
+				continue;
+			int code = cause instanceof SMTPSendFailedException ? ((SMTPSendFailedException) cause).getReturnCode()
+					: 0;
+			String message = String.valueOf(cause.getMessage()).toLowerCase(Locale.ROOT);
+			if (code == 421 || code == 450 || code == 451 || code == 452 || code == 454
+					|| message.contains("5.4.5") || message.contains("quota") || message.contains("rate limit"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether {@link e} means the email can never be sent as it is, so
+	 * retrying it is pointless.
+	 * <p>
+	 * A 5xx reply to the sender or a recipient anywhere in {@link e} is
+	 * permanent. A 4xx reply, such as greylisting, a busy mailbox, or a temporary
+	 * rate limit, is transient, as is an error without a reply, such as a dropped
+	 * connection, unless the email was refused without one.
+	 *
+	 * @param e error of sending an email
+	 * @return boolean true if sending the email again cannot succeed
+	 */
+	public static boolean isPermanent(MessagingException e) {
+		boolean replied = false;
+		for (Exception cause = e; cause != null; cause = cause instanceof MessagingException
+				? ((MessagingException) cause).getNextException()
+				: null) {
+			int code = 0;
+			if (cause instanceof SMTPSendFailedException)
+				code = ((SMTPSendFailedException) cause).getReturnCode();
+			else if (cause instanceof SMTPAddressFailedException)
+				code = ((SMTPAddressFailedException) cause).getReturnCode();
+			if (code >= 500)
+				return true;
+			if (code >= 400)
+				replied = true;
+		}
+		return !replied && e instanceof SendFailedException;
+	}
+}
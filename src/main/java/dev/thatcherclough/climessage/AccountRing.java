@@ -0,0 +1,199 @@
+package dev.thatcherclough.climessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.MessagingException;
+
+public class AccountRing {
+
+	private static final int POINTS_PER_ACCOUNT = 128;
+	private static final LongAdder FAILOVERS = Metrics.counter("send.failovers");
+	private static final LongAdder THROTTLED = Metrics.counter("send.throttled");
+
+	private final List<Account> accounts;
+	private final TreeMap<Long, Account> ring = new TreeMap<Long, Account>();
+
+	/**
+	 * Constructs a new AccountRing of {@link accounts}.
+	 * <p>
+	 * Each account is placed on a hash ring at {@link #POINTS_PER_ACCOUNT} points
+	 * derived from its address, so adding or removing an account only moves the
+	 * recipients between it and its neighbors.
+	 *
+	 * @param accounts accounts to send from, at least one
+	 */
+	public AccountRing(List<Account> accounts) {
+		this.accounts = Collections.unmodifiableList(new ArrayList<Account>(accounts));
+		for (Account account : accounts)
+			for (int k = 0; k < POINTS_PER_ACCOUNT; k++)
+				ring.put(hash(account.getAddress() + "#" + k), account);
+	}
+
+	/**
+	 * Reads the accounts in "userdata/creds.properties" with
+	 * {@link Account#load()} into a new AccountRing.
+	 *
+	 * @return AccountRing of the accounts
+	 * @throws IOException
+	 */
+	public static AccountRing load() throws IOException {
+		return new AccountRing(Account.load());
+	}
+
+	/**
+	 * Gets the accounts of the ring.
+	 *
+	 * @return List of the accounts in the order they were given
+	 */
+	public List<Account> getAccounts() {
+		return accounts;
+	}
+
+	/**
+	 * Gets the accounts to send to {@link recipient} from, in order of
+	 * preference.
+	 * <p>
+	 * The first account is the one after the hash of {@link recipient} on the
+	 * ring, so every message of a conversation is sent from, and replied to, the
+	 * same account while it is available. The others follow in ring order.
+	 *
+	 * @param recipient email address to send to
+	 * @return List of every account, preferred first
+	 */
+	public List<Account> route(String recipient) {
+		Set<Account> ret = new LinkedHashSet<Account>();
+		long hash = hash(recipient);
+		for (Account account : ring.tailMap(hash).values()) {
+			if (ret.size() == accounts.size())
+				break;
+			ret.add(account);
+		}
+		for (Account account : ring.headMap(hash).values()) {
+			if (ret.size() == accounts.size())
+				break;
+			ret.add(account);
+		}
+		return new ArrayList<Account>(ret);
+	}
+
+	/**
+	 * Sends email to {@link recipient} with text {@link body} from the first
+	 * account of {@link #route(String)} that is not throttled and has quota left.
+	 * <p>
+	 * If the server answers that the account is throttled, the account is
+	 * skipped with {@link Account#throttle()} and the email is sent from the next
+	 * one. Any other error that is not permanent, as told by
+	 * {@link Account#isPermanent(MessagingException)}, such as a 4xx reply or a
+	 * dropped connection, also moves on to the next account, and the first such
+	 * error is thrown if no account could send the email. A permanent error is
+	 * thrown at once. The quota taken for an email that was not sent is given
+	 * back with {@link Account#refund()}. Failovers are recorded in counter
+	 * "send.failovers" and throttled accounts in counter "send.throttled".
+	 *
+	 * @param recipient receiver of email
+	 * @param body      body of email
+	 * @return Account the email was sent from
+	 * @throws MessagingException if sending failed, or no account could send it
+	 */
+	public Account send(String recipient, String body) throws MessagingException {
+		boolean first = true;
+		MessagingException failure = null;
+		for (Account account : route(recipient)) {
+			if (!account.reserve()) {
+				first = false;
+				continue;
+			}
+			if (!first)
+				FAILOVERS.increment();
+			try {
+				deliver(account, recipient, body);
+				return account;
+			} catch (MessagingException e) {
+				account.refund();
+				if (Account.isThrottled(e)) {
+					THROTTLED.increment();
+					account.throttle();
+				} else if (Account.isPermanent(e))
+					throw e;
+				else if (failure == null)
+					failure = e;
+				first = false;
+			} catch (RuntimeException e) {
+				account.refund();
+				throw e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+		throw new MessagingException("Every account is throttled or out of quota");
+	}
+
+	/**
+	 * Sends email to {@link recipient} with text {@link body} from
+	 * {@link account} with {@link EmailUtils#sendEmail(Account, String, String)}.
+	 *
+	 * @param account   account to send from
+	 * @param recipient receiver of email
+	 * @param body      body of email
+	 * @throws MessagingException
+	 */
+	void deliver(Account account, String recipient, String body) throws MessagingException {
+		EmailUtils.sendEmail(account, recipient, body);
+	}
+
+	/**
+	 * Opens and authenticates a transport of the {@link SmtpPool} of every account
+	 * at once on {@link Workers#send()}, which is bounded and meant for blocking
+	 * SMTP work.
+	 *
+	 * @throws MessagingException if no account could connect
+	 */
+	public void warm() throws MessagingException {
+		List<CompletableFuture<MessagingException>> warming = new ArrayList<CompletableFuture<MessagingException>>();
+		for (Account account : accounts)
+			warming.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					SmtpPool.get(account).warm();
+					return null;
+				} catch (MessagingException e) {
+					return e;
+				}
+			}, Workers.send()));
+		MessagingException failure = null;
+		for (CompletableFuture<MessagingException> warmed : warming) {
+			MessagingException e = warmed.join();
+			if (e == null)
+				return;
+			failure = e;
+		}
+		throw failure;
+	}
+
+	/**
+	 * Hashes {@link key} to a point on the ring.
+	 *
+	 * @param key key to hash
+	 * @return long first 64 bits of the MD5 of {@link key}
+	 */
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long ret = 0;
+			for (int k = 0; k < 8; k++)
+				ret = (ret << 8) | (digest[k] & 0xff);
+			return ret;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package dev.thatcherclough.climessage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+
+public class AttachmentStore {
+
+	private static final File directory = new File("userdata" + File.separator + "media");
+	private static final Pattern REFERENCE = Pattern.compile("^\\[media ([0-9a-f]{64}(\\.[a-z0-9]{1,8})?)\\]");
+
+	/**
+	 * Stores the content of attachment {@link part} in "userdata/media".
+	 * <p>
+	 * The content is streamed to a temporary file while it is hashed, so it is
+	 * never held in memory, and then moved to a file named after its SHA-256 hash
+	 * and the extension of {@link part}. If a file with that name already exists,
+	 * the same media was received before and the temporary file is deleted, so
+	 * repeated media takes disk space only once.
+	 *
+	 * @param part attachment to store
+	 * @return String name of the stored file
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public static String store(Part part) throws MessagingException, IOException {
+		directory.mkdirs();
+		File temp = new File(directory, UUID.randomUUID() + ".tmp");
+		MessageDigest digest = sha256();
+		try {
+			try (InputStream in = new DigestInputStream(part.getInputStream(), digest);
+					OutputStream out = new FileOutputStream(temp)) {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1)
+					out.write(buffer, 0, read);
+			}
+			String name = hex(digest.digest()) + extension(part);
+			File target = new File(directory, name);
+			if (!target.exists())
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			return name;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Gets the line of a ".convo" file that refers to stored media {@link name}.
+	 *
+	 * @param name name of a file returned by {@link #store(Part)}
+	 * @return String reference to {@link name}
+	 */
+	public static String reference(String name) {
+		return "[media " + name + "]";
+	}
+
+	/**
+	 * Gets the name of the stored media that line {@link line} of a ".convo" file
+	 * refers to.
+	 *
+	 * @param line line of a ".convo" file
+	 * @return String name of the stored file, or null if {@link line} is not a
+	 *         reference
+	 */
+	public static String parseReference(String line) {
+		Matcher matcher = REFERENCE.matcher(line);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	/**
+	 * Copies the media referred to in ".convo" file {@link convo} to directory
+	 * {@link destination}.
+	 * <p>
+	 * Media is only read from "userdata/media" here, when it is exported. Media
+	 * referred to more than once is copied once. Media that is no longer stored
+	 * is skipped.
+	 *
+	 * @param convo       ".convo" file to export media of
+	 * @param destination directory to copy media to
+	 * @return List of exported files
+	 * @throws IOException
+	 */
+	public static List<File> export(File convo, File destination) throws IOException {
+		List<File> ret = new ArrayList<File>();
+		destination.mkdirs();
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(convo), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String name = parseReference(line);
+				if (name == null)
+					continue;
+				File source = new File(directory, name);
+				File target = new File(destination, name);
+				if (!source.exists() || target.exists())
+					continue;
+				Files.copy(source.toPath(), target.toPath());
+				ret.add(target);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the extension of the file name of {@link part}, or of its content
+	 * type if it has no file name.
+	 *
+	 * @param part attachment
+	 * @return String extension starting with ".", or an empty String if it has
+	 *         none
+	 */
+	private static String extension(Part part) {
+		String extension = "";
+		try {
+			String filename = part.getFileName();
+			if (filename != null && filename.contains("."))
+				extension = filename.substring(filename.lastIndexOf(".") + 1);
+			else
+				extension = new ContentType(part.getContentType()).getSubType();
+		} catch (Exception e) {
+		}
+		extension = extension.toLowerCase();
+		return extension.matches("[a-z0-9]{1,8}") ? "." + extension : "";
+	}
+
+	/**
+	 * Creates a new SHA-256 {@link MessageDigest}.
+	 *
+	 * @return MessageDigest computing SHA-256
+	 */
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Encodes {@link bytes} as lowercase hexadecimal.
+	 *
+	 * @param bytes bytes to encode
+	 * @return String hexadecimal digits of {@link bytes}
+	 */
+	private static String hex(byte[] bytes) {
+		StringBuilder ret = new StringBuilder();
+		for (byte b : bytes)
+			ret.append(String.format("%02x", b));
+		return ret.toString();
+	}
+}
@@ -0,0 +1,205 @@
+package dev.thatcherclough.climessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import org.jsoup.Jsoup;
+
+public class BodyExtractor {
+
+	private static final int MAX_DEPTH = 8;
+	private static final int INLINE_PLAIN = 3;
+	private static final int INLINE_HTML = 2;
+	private static final int ATTACHED_TEXT = 1;
+
+	private final int maxBytes;
+	private final List<Part> leaves = new ArrayList<Part>();
+	private Part best = null;
+	private int bestRank = 0;
+
+	/**
+	 * Constructs a new BodyExtractor for email {@link part} that reads at most
+	 * setting "receive.max.bytes" (16384) bytes of its text.
+	 * <p>
+	 * The MIME tree of {@link part} is walked by content type only, so no part is
+	 * downloaded or decoded here. The first inline text/plain part is picked as
+	 * the text, then the first inline text/html part, then the first text part
+	 * sent as an attachment, which is how some carriers send the text of MMS.
+	 *
+	 * @param part email to extract text and attachments of
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public BodyExtractor(Part part) throws MessagingException, IOException {
+		this(part, (int) Settings.getLong("receive.max.bytes", 16384));
+	}
+
+	/**
+	 * Constructs a new BodyExtractor like {@link #BodyExtractor(Part)} that reads
+	 * at most {@link maxBytes} bytes of the text.
+	 *
+	 * @param part     email to extract text and attachments of
+	 * @param maxBytes largest number of bytes of text to read
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public BodyExtractor(Part part, int maxBytes) throws MessagingException, IOException {
+		this.maxBytes = maxBytes;
+		walk(part, 0);
+	}
+
+	/**
+	 * Gets the text of email {@link part} with a new {@link BodyExtractor}.
+	 *
+	 * @param part email to get text of
+	 * @return String text of {@link part}, or null if it has no text
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public static String extract(Part part) throws MessagingException, IOException {
+		return new BodyExtractor(part).getText();
+	}
+
+	/**
+	 * Gets the text of the email.
+	 * <p>
+	 * At most {@link #maxBytes} bytes of the picked part are read and decoded,
+	 * and HTML is stripped to its text with Jsoup. Other parts are never read.
+	 *
+	 * @return String text of the email, or null if it has no text
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public String getText() throws MessagingException, IOException {
+		if (best == null)
+			return null;
+		String text = read(best);
+		return best.isMimeType("text/html") ? Jsoup.parse(text).text() : text;
+	}
+
+	/**
+	 * Gets the attachments of the email, such as the pictures of MMS.
+	 * <p>
+	 * Every part that is not a multipart, not the picked text, and not another
+	 * inline text part, such as the HTML alternative of the text, is an
+	 * attachment. SMIL layouts that carriers add to MMS are skipped. The
+	 * attachments are not read.
+	 *
+	 * @return List of attachments in the order they appear in the email
+	 * @throws MessagingException
+	 */
+	public List<Part> getAttachments() throws MessagingException {
+		List<Part> ret = new ArrayList<Part>();
+		for (Part leaf : leaves) {
+			int rank = rank(leaf);
+			if (leaf != best && rank != INLINE_PLAIN && rank != INLINE_HTML && !leaf.isMimeType("application/smil"))
+				ret.add(leaf);
+		}
+		return ret;
+	}
+
+	/**
+	 * Walks {@link part} and its children, adding every part that is not a
+	 * multipart to {@link #leaves} and keeping the best text part in
+	 * {@link #best}.
+	 *
+	 * @param part  part to walk
+	 * @param depth number of multiparts {@link part} is nested in
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	private void walk(Part part, int depth) throws MessagingException, IOException {
+		if (part.isMimeType("multipart/*")) {
+			if (depth >= MAX_DEPTH)
+				return;
+			Object content = part.getContent();
+			if (!(content instanceof Multipart))
+				return;
+			Multipart multipart = (Multipart) content;
+			for (int k = 0; k < multipart.getCount(); k++)
+				walk(multipart.getBodyPart(k), depth + 1);
+			return;
+		}
+		leaves.add(part);
+		int rank = rank(part);
+		if (rank > bestRank) {
+			best = part;
+			bestRank = rank;
+		}
+	}
+
+	/**
+	 * Gets how well {@link part} fits as the text of an email.
+	 *
+	 * @param part part that is not a multipart
+	 * @return int rank of {@link part}, higher is better, or 0 if it has no text
+	 * @throws MessagingException
+	 */
+	private static int rank(Part part) throws MessagingException {
+		boolean attached = Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) || part.getFileName() != null;
+		if (part.isMimeType("text/plain"))
+			return attached ? ATTACHED_TEXT : INLINE_PLAIN;
+		if (part.isMimeType("text/html") && !attached)
+			return INLINE_HTML;
+		return 0;
+	}
+
+	/**
+	 * Reads and decodes at most {@link #maxBytes} bytes of text part
+	 * {@link part}.
+	 * <p>
+	 * A character cut off at the end of the bytes read is dropped instead of
+	 * being decoded as garbage.
+	 *
+	 * @param part text part to read
+	 * @return String decoded text of {@link part}
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	private String read(Part part) throws MessagingException, IOException {
+		byte[] bytes = new byte[maxBytes];
+		int length = 0;
+		try (InputStream in = part.getInputStream()) {
+			int read;
+			while (length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) != -1)
+				length += read;
+		}
+		CharsetDecoder decoder = charset(part).newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.allocate((int) Math.ceil(length * (double) decoder.maxCharsPerByte()));
+		decoder.decode(ByteBuffer.wrap(bytes, 0, length), chars, length < maxBytes);
+		if (length < maxBytes)
+			decoder.flush(chars);
+		chars.flip();
+		return chars.toString();
+	}
+
+	/**
+	 * Gets the charset of text part {@link part}.
+	 *
+	 * @param part text part
+	 * @return Charset named by {@link part}, or UTF-8 if it names none or an
+	 *         unsupported one
+	 */
+	private static Charset charset(Part part) {
+		try {
+			String name = new ContentType(part.getContentType()).getParameter("charset");
+			if (name != null)
+				return Charset.forName(MimeUtility.javaCharset(name));
+		} catch (Exception e) {
+		}
+		return StandardCharsets.UTF_8;
+	}
+}
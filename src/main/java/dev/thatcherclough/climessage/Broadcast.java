@@ -0,0 +1,132 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+
+public class Broadcast {
+
+	private final AccountRing accounts;
+	private final String message;
+
+	/**
+	 * Constructs a new Broadcast that sends {@link message} from the accounts of
+	 * {@link accounts}.
+	 *
+	 * @param accounts accounts to send email from
+	 * @param message  message to send
+	 */
+	public Broadcast(AccountRing accounts, String message) {
+		this.accounts = accounts;
+		this.message = message;
+	}
+
+	/**
+	 * Sends {@link #message} to every target in {@link targets} and prints the
+	 * result of each recipient and the overall messages per second.
+	 * <p>
+	 * A target is a phone number, a ".convo" file, or "@file" to read targets from
+	 * "file", one per line. The forwarding email address of every phone number is
+	 * looked up in parallel on {@link Workers#lookup()} with
+	 * {@link EmailUtils#getEmail(String)}. Messages are then sent on
+	 * {@link Workers#send()}, so all recipients share a few authenticated
+	 * connections of the {@link SmtpPool} of every account, and each pool's
+	 * {@link RateLimiter} keeps its account under its rate. Recipients are spread
+	 * over the accounts by {@link AccountRing#send(String, String)}. A recipient
+	 * whose lookup or send fails is reported as failed without affecting the
+	 * others. Messages sent to a phone number with a conversation are logged to
+	 * its ".convo" file.
+	 *
+	 * @param targets phone numbers, ".convo" files, or "@file" lists of targets
+	 * @return int number of recipients the message was sent to
+	 * @throws IOException
+	 */
+	public int send(List<String> targets) throws IOException {
+		List<String> numbers = new ArrayList<String>();
+		for (String target : targets)
+			addNumbers(target, numbers);
+		long start = System.nanoTime();
+		List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+		for (String number : numbers) {
+			results.add(CompletableFuture.supplyAsync(() -> EmailUtils.getEmail(number), Workers.lookup())
+					.thenApplyAsync(recipient -> send(number, recipient), Workers.send())
+					.exceptionally(e -> "failed: " + (e.getCause() != null ? e.getCause() : e).getMessage()));
+		}
+		int sent = 0;
+		for (int k = 0; k < numbers.size(); k++) {
+			String result = results.get(k).join();
+			if (result.startsWith("sent"))
+				sent++;
+			System.out.println(numbers.get(k) + "  -  " + result);
+		}
+		double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+		System.out.println(String.format("Sent %d of %d messages in %.1f s (%.1f messages/s)", sent, numbers.size(),
+				seconds, sent / Math.max(seconds, 0.001)));
+		return sent;
+	}
+
+	/**
+	 * Sends {@link #message} to {@link recipient}, split by {@link SmsSegmenter}
+	 * if too long for one text, and logs it to the conversation of {@link number}
+	 * if there is one.
+	 * <p>
+	 * The conversation is found in {@link InboxDispatcher#conversations()}, so
+	 * "userdata" is not listed for every recipient. If a segment after the first
+	 * fails, the segments before it were already delivered, so the segment that
+	 * failed is reported.
+	 *
+	 * @param number    phone number to send to
+	 * @param recipient email address that forwards to {@link number}, or null if
+	 *                  it could not be found
+	 * @return String "sent" or the reason sending failed
+	 */
+	private String send(String number, String recipient) {
+		if (recipient == null)
+			return "failed: could not get carrier";
+		List<String> segments = SmsSegmenter.split(message);
+		int sent = 0;
+		try {
+			for (String segment : segments) {
+				accounts.send(recipient, segment);
+				sent++;
+			}
+		} catch (MessagingException e) {
+			if (sent == 0)
+				return "failed: " + e.getMessage();
+			return "failed at segment " + (sent + 1) + " of " + segments.size() + ": " + e.getMessage();
+		}
+		File convo = InboxDispatcher.conversations().get(number);
+		if (convo != null) {
+			try {
+				new ConversationLog(convo).append(ConversationLog.format(message, "sent"));
+			} catch (IOException e) {
+				return "sent, but not logged: " + e.getMessage();
+			}
+		}
+		return "sent";
+	}
+
+	/**
+	 * Adds the phone numbers of target {@link target} to {@link numbers}.
+	 *
+	 * @param target  phone number, ".convo" file, or "@file"
+	 * @param numbers phone numbers to add to
+	 * @throws IOException
+	 */
+	private static void addNumbers(String target, List<String> numbers) throws IOException {
+		if (target.startsWith("@")) {
+			for (String line : Files.readAllLines(new File(target.substring(1)).toPath(), StandardCharsets.UTF_8))
+				if (!line.trim().isEmpty())
+					addNumbers(line.trim(), numbers);
+		} else if (target.endsWith(".convo"))
+			numbers.add(target.substring(target.lastIndexOf("-") + 1, target.lastIndexOf(".")));
+		else
+			numbers.add(target.replaceAll("[^0-9]", ""));
+	}
+}
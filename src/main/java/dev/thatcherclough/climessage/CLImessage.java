@@ -1,14 +1,18 @@
 package dev.thatcherclough.climessage;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.File;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import javax.mail.MessagingException;
 import org.fusesource.jansi.Ansi;
 import org.fusesource.jansi.AnsiConsole;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
 
-@SpringBootApplication
 public class CLImessage {
 
 	private static Scanner input = new Scanner(System.in);
@@ -21,33 +25,32 @@ public class CLImessage {
 	 * Otherwise, creates directory "userdata", prompts user for G-Mail address and
 	 * password, saves these credentials to "userdata/creds.properties", and runs
 	 * {@link #main(String[])}.
+	 * <p>
+	 * If run with command line arguments, runs them with
+	 * {@link #runCommand(String[])} instead.
 	 * 
 	 * @param args command line arguments
 	 */
 	public static void main(String[] args) {
-		AnsiConsole.systemInstall();
-		System.out.print(Ansi.ansi().eraseScreen().cursor(0, 0));
-		System.out.println("   .aMMMb  dMP     dMP      dMMMMMMMMb  dMMMMMP .dMMMb  .dMMMb  .aMMMb  .aMMMMP dMMMMMP\n"
-				+ "  dMP\"VMP dMP     amr      dMP\"dMP\"dMP dMP     dMP\" VP dMP\" VP dMP\"dMP dMP\"    dMP\n"
-				+ " dMP     dMP     dMP      dMP dMP dMP dMMMP    VMMMb   VMMMb  dMMMMMP dMP MMP\"dMMMP\n"
-				+ "dMP.aMP dMP     dMP      dMP dMP dMP dMP     dP .dMP dP .dMP dMP dMP dMP.dMP dMP\n"
-				+ "VMMMP\" dMMMMMP dMP      dMP dMP dMP dMMMMMP  VMMMP\"  VMMMP\" dMP dMP  VMMMP\" dMMMMMP\n");
-		System.out.println("Welcome to ClImessage");
-		System.out.println("A command line interface SMS text messaging program.\n");
+		if (args != null && args.length > 0) {
+			try {
+				runCommand(args);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return;
+		}
 		try {
-			if (new File("userdata").isDirectory()) {
-				File[] conversations = new File("userdata").listFiles((dir, name) -> name.endsWith(".convo"));
-				System.out.println("Select:\n");
-				System.out.println("[+] New conversation");
+			File[] conversations = showMenu();
+			if (conversations != null) {
 				String consecutiveConvoNumbers = "";
-				for (int k = 0; k < conversations.length; k++) {
-					String filename = conversations[k].getName();
-					System.out.println("[" + (k + 1) + "] " + filename.substring(0, filename.lastIndexOf("-")));
+				for (int k = 0; k < conversations.length; k++)
 					consecutiveConvoNumbers += Integer.toString(k + 1);
-				}
-				String choice = getInput("op+" + consecutiveConvoNumbers);
+				String choice = getInput("op+/" + consecutiveConvoNumbers);
 				if (choice.equals("+"))
 					newConvo();
+				else if (choice.equals("/"))
+					searchConvos();
 				else
 					openConvo("userdata" + File.separator + conversations[Integer.parseInt(choice) - 1].getName());
 			} else {
@@ -76,6 +79,144 @@ public class CLImessage {
 		}
 	}
 
+	/**
+	 * Clears the console and prints the banner. If directory "userdata" exists,
+	 * also prints the menu of conversations.
+	 * 
+	 * @return File[] ".convo" files in the order they are listed, or null if
+	 *         directory "userdata" does not exist
+	 */
+	private static File[] showMenu() {
+		AnsiConsole.systemInstall();
+		System.out.print(Ansi.ansi().eraseScreen().cursor(0, 0));
+		System.out.println("   .aMMMb  dMP     dMP      dMMMMMMMMb  dMMMMMP .dMMMb  .dMMMb  .aMMMb  .aMMMMP dMMMMMP\n"
+				+ "  dMP\"VMP dMP     amr      dMP\"dMP\"dMP dMP     dMP\" VP dMP\" VP dMP\"dMP dMP\"    dMP\n"
+				+ " dMP     dMP     dMP      dMP dMP dMP dMMMP    VMMMb   VMMMb  dMMMMMP dMP MMP\"dMMMP\n"
+				+ "dMP.aMP dMP     dMP      dMP dMP dMP dMP     dP .dMP dP .dMP dMP dMP dMP.dMP dMP\n"
+				+ "VMMMP\" dMMMMMP dMP      dMP dMP dMP dMMMMMP  VMMMP\"  VMMMP\" dMP dMP  VMMMP\" dMMMMMP\n");
+		System.out.println("Welcome to ClImessage");
+		System.out.println("A command line interface SMS text messaging program.\n");
+		if (!new File("userdata").isDirectory())
+			return null;
+		File[] conversations = new File("userdata").listFiles((dir, name) -> name.endsWith(".convo"));
+		System.out.println("Select:\n");
+		System.out.println("[+] New conversation");
+		System.out.println("[/] Search conversations");
+		for (int k = 0; k < conversations.length; k++) {
+			String filename = conversations[k].getName();
+			System.out.println("[" + (k + 1) + "] " + filename.substring(0, filename.lastIndexOf("-")));
+		}
+		return conversations;
+	}
+
+	/**
+	 * Prints how long after the JVM started the menu of conversations was printed
+	 * and the last messages of the first conversation were first drawn.
+	 * <p>
+	 * The messages are drawn with {@link Messenger#drawHistory(String, PrintStream)}
+	 * into memory so the report stays readable. Nothing is sent or received.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void startupBenchmark() throws IOException, InterruptedException {
+		File[] conversations = showMenu();
+		long listed = System.currentTimeMillis();
+		String first = conversations == null || conversations.length == 0 ? null : conversations[0].getPath();
+		Messenger.drawHistory(first, new PrintStream(new ByteArrayOutputStream()));
+		long rendered = System.currentTimeMillis();
+		long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+		System.out.println();
+		System.out.println("Time to conversation list: " + (listed - start) + " ms");
+		System.out.println("Time to first render: " + (rendered - start) + " ms");
+		Workers.shutdown(0);
+	}
+
+	/**
+	 * Runs the command in command line arguments {@link args}.
+	 * <p>
+	 * "--import-carriers file.csv" builds the offline carrier database
+	 * "userdata/carriers.db" from "file.csv" with
+	 * {@link CarrierDatabase#importCsv(File)}. "--search query" prints the
+	 * messages of all conversations that match "query" using
+	 * {@link SearchIndex#search(String)} and saves the index with
+	 * {@link SearchIndex#flush()}. "--reindex" rebuilds the
+	 * {@link SearchIndex}. "--daemon" runs a {@link Daemon} that conversations
+	 * attach to. "--export-media file.convo directory" copies the media
+	 * received in "file.convo" to "directory" with
+	 * {@link AttachmentStore#export(File, File)}. "--broadcast message
+	 * targets..." sends "message" to every phone number, ".convo" file, or
+	 * "@file" list of targets with {@link Broadcast#send(List)}.
+	 * "--startup-benchmark" prints the startup times measured by
+	 * {@link #startupBenchmark()}.
+	 * 
+	 * @param args command line arguments
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void runCommand(String[] args) throws IOException, InterruptedException {
+		if (args[0].equals("--startup-benchmark")) {
+			startupBenchmark();
+			return;
+		}
+		new File("userdata").mkdir();
+		if (args[0].equals("--import-carriers") && args.length == 2)
+			System.out.println("Imported " + CarrierDatabase.importCsv(new File(args[1])) + " prefixes");
+		else if (args[0].equals("--search") && args.length > 1) {
+			try {
+				for (String result : SearchIndex.get()
+						.search(String.join(" ", Arrays.copyOfRange(args, 1, args.length))))
+					System.out.println(result);
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+			}
+			SearchIndex.flush();
+		} else if (args[0].equals("--reindex"))
+			SearchIndex.get().rebuild();
+		else if (args[0].equals("--daemon")) {
+			try {
+				new Daemon(AccountRing.load()).run();
+			} catch (MessagingException e) {
+				e.printStackTrace();
+			}
+		} else if (args[0].equals("--export-media") && args.length == 3) {
+			for (File exported : AttachmentStore.export(new File(args[1]), new File(args[2])))
+				System.out.println(exported.getPath());
+		} else if (args[0].equals("--broadcast") && args.length > 2) {
+			new Broadcast(AccountRing.load(), args[1]).send(Arrays.asList(Arrays.copyOfRange(args, 2, args.length)));
+			SmtpPool.closeAll();
+		} else
+			System.out.println("Usage: java -jar climessage.jar [--import-carriers file.csv | --search query | --reindex"
+					+ " | --daemon | --export-media file.convo directory | --broadcast message targets... | --startup-benchmark]");
+	}
+
+	/**
+	 * Searches all conversations.
+	 * <p>
+	 * Uses {@link #getInput(String)} to get a query, prints the matching messages
+	 * found with {@link SearchIndex#search(String)}, saves the index with
+	 * {@link SearchIndex#flush()}, and runs {@link #main(String[])} once ENTER is
+	 * pressed.
+	 * 
+	 * @throws IOException
+	 */
+	private static void searchConvos() throws IOException {
+		System.out.println("Enter search query (terms, \"a phrase\", after:MM/dd/yyyy, before:MM/dd/yyyy):");
+		String query = getInput("");
+		try {
+			List<String> results = SearchIndex.get().search(query);
+			for (String result : results)
+				System.out.println(result);
+			System.out.println(results.isEmpty() ? "No messages found." : "");
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+		}
+		SearchIndex.flush();
+		System.out.println("Press ENTER to continue...");
+		input.nextLine();
+		main(null);
+	}
+
 	/**
 	 * Creates a new conversation.
 	 * <p>
@@ -86,14 +227,16 @@ public class CLImessage {
 	 * 
 	 * @throws IOException
 	 * @throws InterruptedException
+	 * @throws MessagingException
 	 */
-	private static void newConvo() throws IOException, InterruptedException {
+	private static void newConvo() throws IOException, InterruptedException, MessagingException {
 		System.out.println("Enter name of conversation:");
 		String name = getInput("");
 		System.out.println("Enter phone number:");
 		String number = getInput("number");
 		String filename = "userdata" + File.separator + name + "-" + number + ".convo";
 		new File(filename).createNewFile();
+		InboxDispatcher.invalidateConversations();
 		openConvo(filename);
 	}
 
@@ -102,15 +245,18 @@ public class CLImessage {
 	 * <p>
 	 * Opens conversation with name {@link filename} by creating a new
 	 * {@link Messenger} with {@link filename}.
-	 * Runs {@link Messenger#start()} to open conversation.
+	 * Runs {@link Messenger#start()} to open conversation and waits until it is
+	 * closed.
 	 * 
 	 * @param filename name of '.convo' file to open
 	 * @throws IOException
 	 * @throws InterruptedException
+	 * @throws MessagingException
 	 */
-	private static void openConvo(String filename) throws IOException, InterruptedException {
+	private static void openConvo(String filename) throws IOException, InterruptedException, MessagingException {
 		Messenger messenger = new Messenger(filename);
 		messenger.start();
+		messenger.awaitExit();
 	}
 
 	/**
@@ -129,7 +275,7 @@ public class CLImessage {
 		else if (type.equals("address") && !ret.endsWith("@gmail.com")) {
 			System.out.println("\nInvalid G-Mail address\nEnter a valid G-Mail address:");
 			return getInput(type);
-		} else if (type.startsWith("password") && !EmailUtils.checkCreds(type.substring(type.indexOf(":") + 1), ret)) {
+		} else if (type.startsWith("password") && !EmailUtils.checkCreds(new Account(type.substring(type.indexOf(":") + 1), ret))) {
 			System.out.println(
 					"\nEither G-Mail address and password don't match, or 3rd party access is disabled\nEnable 3rd party access and reenter password:");
 			return getInput(type);
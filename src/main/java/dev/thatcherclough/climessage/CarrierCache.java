@@ -0,0 +1,164 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public class CarrierCache {
+
+	private static final int MEMORY_ENTRIES = 1024;
+	private static final long TTL_MILLIS = TimeUnit.DAYS
+			.toMillis(Settings.getLong("carrier.cache.ttl.days", 30));
+	private static final long NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES
+			.toMillis(Settings.getLong("carrier.cache.negative.ttl.minutes", 10));
+	private static final File file = new File("userdata" + File.separator + "carriers.cache");
+
+	private static final Map<String, String> memory = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MEMORY_ENTRIES;
+		}
+	};
+	private static final Map<String, CompletableFuture<String>> lookups = new ConcurrentHashMap<String, CompletableFuture<String>>();
+	private static Properties disk = null;
+
+	/**
+	 * Gets the carrier of a phone number without using the cache.
+	 */
+	public interface Lookup {
+		String apply(String number) throws IOException;
+	}
+
+	/**
+	 * Gets the carrier of phone number {@link number}.
+	 * <p>
+	 * Carriers are cached by NPA-NXX-block, first in memory and then in
+	 * "userdata/carriers.cache". Cached carriers expire after setting
+	 * "carrier.cache.ttl.days" days. Phone numbers without a carrier are cached as
+	 * an empty carrier for setting "carrier.cache.negative.ttl.minutes" minutes.
+	 * On a miss, {@link lookup} is run once per NPA-NXX-block even if several
+	 * threads ask at once. If {@link lookup} throws, nothing is cached.
+	 *
+	 * @param number phone number to get carrier of
+	 * @param lookup function that gets the carrier of a phone number, or an empty
+	 *               String if it has none
+	 * @return String carrier of {@link number}, or an empty String if it has none
+	 * @throws IOException
+	 */
+	public static String get(String number, Lookup lookup) throws IOException {
+		String key = number.substring(0, 7);
+		String carrier = getCached(key);
+		if (carrier != null)
+			return carrier;
+		CompletableFuture<String> future = new CompletableFuture<String>();
+		CompletableFuture<String> running = lookups.putIfAbsent(key, future);
+		if (running != null)
+			return join(running);
+		try {
+			carrier = getCached(key);
+			if (carrier == null) {
+				carrier = lookup.apply(number);
+				put(key, carrier);
+			}
+			future.complete(carrier);
+		} catch (IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+		} finally {
+			lookups.remove(key);
+		}
+		return join(future);
+	}
+
+	/**
+	 * Gets the unexpired cached carrier of NPA-NXX-block {@link key}.
+	 *
+	 * @param key NPA-NXX-block of a phone number
+	 * @return String cached carrier, or null if not cached
+	 */
+	private static synchronized String getCached(String key) {
+		String entry = memory.get(key);
+		if (entry == null) {
+			entry = load().getProperty(key);
+			if (entry == null)
+				return null;
+			memory.put(key, entry);
+		}
+		int split = entry.lastIndexOf(",");
+		if (Long.parseLong(entry.substring(split + 1)) < System.currentTimeMillis()) {
+			memory.remove(key);
+			return null;
+		}
+		return entry.substring(0, split);
+	}
+
+	/**
+	 * Caches {@link carrier} as the carrier of NPA-NXX-block {@link key} and saves
+	 * "userdata/carriers.cache".
+	 *
+	 * @param key     NPA-NXX-block of a phone number
+	 * @param carrier carrier of {@link key}, or an empty String if it has none
+	 * @throws IOException
+	 */
+	private static synchronized void put(String key, String carrier) throws IOException {
+		long expires = System.currentTimeMillis() + (carrier.isEmpty() ? NEGATIVE_TTL_MILLIS : TTL_MILLIS);
+		String entry = carrier + "," + expires;
+		memory.put(key, entry);
+		if (carrier.isEmpty() || !file.getParentFile().isDirectory())
+			return;
+		load().setProperty(key, entry);
+		File temp = new File(file.getPath() + ".tmp");
+		try (OutputStream out = new FileOutputStream(temp)) {
+			disk.store(out, null);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads "userdata/carriers.cache" if it has not been loaded yet.
+	 *
+	 * @return Properties of NPA-NXX-blocks to carriers and expiry times
+	 */
+	private static Properties load() {
+		if (disk == null) {
+			disk = new Properties();
+			if (file.isFile()) {
+				try (InputStream in = new FileInputStream(file)) {
+					disk.load(in);
+				} catch (IOException e) {
+				}
+			}
+		}
+		return disk;
+	}
+
+	/**
+	 * Waits for {@link future} and unwraps its exception.
+	 *
+	 * @param future lookup to wait for
+	 * @return String carrier
+	 * @throws IOException
+	 */
+	private static String join(CompletableFuture<String> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw (RuntimeException) e.getCause();
+		}
+	}
+}
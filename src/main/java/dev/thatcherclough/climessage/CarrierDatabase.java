@@ -0,0 +1,193 @@
+package dev.thatcherclough.climessage;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+public class CarrierDatabase {
+
+	/**
+	 * Carriers in the order of their codes in "userdata/carriers.db".
+	 */
+	public static final String[] CARRIERS = { "att", "tmobile", "verizon", "sprint", "metropcs", "boostmobile",
+			"cricket" };
+
+	private static final int MAGIC = 0x434c4d43;
+	private static final int HEADER_BYTES = 8;
+	private static final int RECORD_BYTES = 8;
+	private static final int WHOLE_NXX = 15;
+	private static final File file = new File("userdata" + File.separator + "carriers.db");
+
+	private static MappedByteBuffer records = null;
+	private static int count = 0;
+	private static volatile boolean loaded = false;
+
+	/**
+	 * Gets the carrier of phone number {@link number} from "userdata/carriers.db".
+	 * <p>
+	 * "userdata/carriers.db" is a header followed by records sorted by key. Each
+	 * record is an int key, NPA-NXX * 16 + thousands block (or 15 for the whole
+	 * NPA-NXX), and an int index into {@link #CARRIERS}. The file is memory-mapped
+	 * and binary searched, first for the block of {@link number} and then for its
+	 * whole NPA-NXX, without allocating.
+	 *
+	 * @param number phone number to get carrier of
+	 * @return String carrier of {@link number}, or null if it is not in the
+	 *         database or there is no database
+	 */
+	public static String lookup(String number) {
+		if (number.length() < 7)
+			return null;
+		int npaNxx = 0;
+		for (int k = 0; k < 7; k++) {
+			char digit = number.charAt(k);
+			if (digit < '0' || digit > '9')
+				return null;
+			if (k < 6)
+				npaNxx = npaNxx * 10 + (digit - '0');
+		}
+		int block = number.charAt(6) - '0';
+		MappedByteBuffer buffer = loaded ? records : map();
+		if (buffer == null)
+			return null;
+		int carrier = search(buffer, npaNxx * 16 + block);
+		if (carrier < 0)
+			carrier = search(buffer, npaNxx * 16 + WHOLE_NXX);
+		return carrier < 0 || carrier >= CARRIERS.length ? null : CARRIERS[carrier];
+	}
+
+	/**
+	 * Builds "userdata/carriers.db" from CSV file {@link csv}.
+	 * <p>
+	 * Each line of {@link csv} is "NPA,NXX,block,carrier" or "NPA,NXX,carrier" for
+	 * a whole NPA-NXX. Carrier names are matched loosely, so "AT&T" and "T-Mobile
+	 * USA" are recognized. Lines that are not numeric, such as a header, and lines
+	 * of unsupported carriers are skipped.
+	 *
+	 * @param csv CSV file to import
+	 * @return int number of imported prefixes
+	 * @throws IOException
+	 */
+	public static int importCsv(File csv) throws IOException {
+		long[] entries = new long[1024];
+		int size = 0;
+		try (BufferedReader in = Files.newBufferedReader(csv.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(",");
+				if (fields.length < 3)
+					continue;
+				try {
+					int npaNxx = Integer.parseInt(fields[0].trim()) * 1000 + Integer.parseInt(fields[1].trim());
+					String blockField = fields.length > 3 ? fields[2].trim() : "";
+					int block = blockField.isEmpty() || blockField.equals("*") ? WHOLE_NXX
+							: Integer.parseInt(blockField);
+					int carrier = carrierCode(fields[fields.length - 1]);
+					if (carrier < 0 || block < 0 || (block > 9 && block != WHOLE_NXX))
+						continue;
+					if (size == entries.length)
+						entries = Arrays.copyOf(entries, size * 2);
+					entries[size++] = ((long) (npaNxx * 16 + block) << 32) | carrier;
+				} catch (NumberFormatException e) {
+				}
+			}
+		}
+		Arrays.sort(entries, 0, size);
+		File temp = new File(file.getPath() + ".tmp");
+		int written = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(0);
+			for (int k = 0; k < size; k++) {
+				if (k > 0 && (entries[k] >>> 32) == (entries[k - 1] >>> 32))
+					continue;
+				out.writeInt((int) (entries[k] >>> 32));
+				out.writeInt((int) entries[k]);
+				written++;
+			}
+		}
+		try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+			out.seek(4);
+			out.writeInt(written);
+		}
+		synchronized (CarrierDatabase.class) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			loaded = false;
+		}
+		return written;
+	}
+
+	/**
+	 * Gets the code of carrier {@link name} in {@link #CARRIERS}.
+	 *
+	 * @param name name of carrier
+	 * @return int code of {@link name}, or -1 if it is not supported
+	 */
+	private static int carrierCode(String name) {
+		String normalized = name.toLowerCase().replaceAll("[^a-z0-9]", "");
+		for (int k = 0; k < CARRIERS.length; k++)
+			if (normalized.startsWith(CARRIERS[k]))
+				return k;
+		return -1;
+	}
+
+	/**
+	 * Binary searches the records of {@link buffer} for {@link key}.
+	 *
+	 * @param buffer mapped "userdata/carriers.db"
+	 * @param key    key to search for
+	 * @return int carrier code of {@link key}, or -1 if not found
+	 */
+	private static int search(MappedByteBuffer buffer, int key) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int found = buffer.getInt(HEADER_BYTES + middle * RECORD_BYTES);
+			if (found < key)
+				low = middle + 1;
+			else if (found > key)
+				high = middle - 1;
+			else
+				return buffer.getInt(HEADER_BYTES + middle * RECORD_BYTES + 4);
+		}
+		return -1;
+	}
+
+	/**
+	 * Memory-maps "userdata/carriers.db" if it was not mapped yet or has been
+	 * rebuilt since.
+	 *
+	 * @return MappedByteBuffer of "userdata/carriers.db", or null if it does not
+	 *         exist or is invalid
+	 */
+	private static synchronized MappedByteBuffer map() {
+		if (loaded)
+			return records;
+		records = null;
+		count = 0;
+		if (file.isFile()) {
+			try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+				MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+				if (buffer.capacity() >= HEADER_BYTES && buffer.getInt(0) == MAGIC) {
+					count = Math.min(buffer.getInt(4), (buffer.capacity() - HEADER_BYTES) / RECORD_BYTES);
+					records = buffer;
+				}
+			} catch (IOException e) {
+			}
+		}
+		loaded = true;
+		return records;
+	}
+}
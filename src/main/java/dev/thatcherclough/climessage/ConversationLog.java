@@ -0,0 +1,148 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConversationLog {
+
+	private static final int BLOCK_BYTES = 8192;
+
+	private final File file;
+	private long unread;
+
+	/**
+	 * Constructs a new ConversationLog for ".convo" file {@link file}.
+	 * <p>
+	 * Nothing is read until {@link #readOlder(int)} is called.
+	 *
+	 * @param file ".convo" file of the conversation
+	 */
+	public ConversationLog(File file) {
+		this.file = file;
+		this.unread = file.length();
+	}
+
+	/**
+	 * Reads up to {@link count} lines older than the lines read so far.
+	 * <p>
+	 * The file is read backward from the end in blocks of {@link #BLOCK_BYTES}
+	 * bytes, so only the requested lines are decoded and the cost does not depend
+	 * on the size of the file. Lines appended with {@link #append(String)} after
+	 * this log was constructed are never returned.
+	 *
+	 * @param count maximum number of lines to read
+	 * @return List of lines, newest first
+	 * @throws IOException
+	 */
+	public synchronized List<String> readOlder(int count) throws IOException {
+		List<String> ret = new ArrayList<String>();
+		if (unread == 0)
+			return ret;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+			long lineEnd = unread;
+			long scan = unread;
+			while (ret.size() < count && scan > 0) {
+				long start = Math.max(0, scan - BLOCK_BYTES);
+				block.clear().limit((int) (scan - start));
+				while (block.hasRemaining() && channel.read(block, start + block.position()) >= 0)
+					;
+				for (int k = block.position() - 1; k >= 0 && ret.size() < count; k--) {
+					if (block.get(k) == '\n') {
+						addLine(channel, start + k + 1, lineEnd, ret);
+						lineEnd = start + k;
+					}
+				}
+				scan = start;
+			}
+			if (ret.size() < count && scan == 0) {
+				addLine(channel, 0, lineEnd, ret);
+				lineEnd = 0;
+			}
+			unread = lineEnd;
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks if there are lines older than the lines read so far.
+	 *
+	 * @return boolean if {@link #readOlder(int)} can return more lines
+	 */
+	public synchronized boolean hasOlder() {
+		return unread > 0;
+	}
+
+	/**
+	 * Appends {@link line} to the end of the file and updates the
+	 * {@link SearchIndex}.
+	 *
+	 * @param line line to append
+	 * @throws IOException
+	 */
+	public synchronized void append(String line) throws IOException {
+		try (OutputStream out = new FileOutputStream(file, true)) {
+			out.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+		}
+		SearchIndex.update(file);
+	}
+
+	/**
+	 * Gets the ".convo" file of this log.
+	 *
+	 * @return File of this log
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Formats {@link message} as a line of a ".convo" file with status
+	 * {@link status} and the current time.
+	 * <p>
+	 * Only the first line of {@link message} is kept.
+	 *
+	 * @param message message to format
+	 * @param status  status of message, such as "sent" or "received"
+	 * @return String line of a ".convo" file
+	 */
+	public static String format(String message, String status) {
+		if (message.contains("\r"))
+			message = message.substring(0, message.indexOf("\r"));
+		if (message.contains("\n"))
+			message = message.substring(0, message.indexOf("\n"));
+		String timestamp = "[" + DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss").format(LocalDateTime.now()) + "]";
+		return message + "  -  [" + status + "] " + timestamp;
+	}
+
+	/**
+	 * Decodes the line between {@link start} and {@link end} and adds it to
+	 * {@link lines} if it is not empty.
+	 *
+	 * @param channel channel of the file
+	 * @param start   offset of the first byte of the line
+	 * @param end     offset after the last byte of the line
+	 * @param lines   lines to add the line to
+	 * @throws IOException
+	 */
+	private static void addLine(FileChannel channel, long start, long end, List<String> lines) throws IOException {
+		ByteBuffer line = ByteBuffer.allocate((int) (end - start));
+		while (line.hasRemaining() && channel.read(line, start + line.position()) >= 0)
+			;
+		int length = line.position();
+		if (length > 0 && line.get(length - 1) == '\r')
+			length--;
+		if (length > 0)
+			lines.add(new String(line.array(), 0, length, StandardCharsets.UTF_8));
+	}
+}
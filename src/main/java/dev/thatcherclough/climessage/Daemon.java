@@ -0,0 +1,321 @@
+package dev.thatcherclough.climessage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.mail.MessagingException;
+
+public class Daemon {
+
+	private static final File file = new File("userdata" + File.separator + "daemon.properties");
+
+	private final AccountRing accounts;
+	private final String token = token();
+	private final Map<String, String> gateways = new ConcurrentHashMap<String, String>();
+	private final Map<String, Set<Client>> subscribers = new ConcurrentHashMap<String, Set<Client>>();
+	private OutboundQueue outbound = null;
+	private InboxDispatcher dispatcher = null;
+	private ServerSocket server = null;
+
+	/**
+	 * Constructs a new Daemon for the accounts of {@link accounts}.
+	 *
+	 * @param accounts accounts to send and receive email with
+	 */
+	public Daemon(AccountRing accounts) {
+		this.accounts = accounts;
+	}
+
+	/**
+	 * Runs the daemon until the process is stopped.
+	 * <p>
+	 * Replays the {@link OutboundQueue} and starts watching the inboxes with the
+	 * {@link InboxDispatcher}, so received messages keep being appended to the
+	 * ".convo" files while no conversation is open. Once listening, the
+	 * {@link SmtpPool} of every account is warmed on {@link Workers#lookup()}, so
+	 * the daemon also starts while offline.
+	 * Listens on a random port of the loopback interface, or setting
+	 * "daemon.port" if it is not 0, and writes the port and a random token to
+	 * "userdata/daemon.properties", readable only by the owner. Clients, such as
+	 * {@link DaemonClient}, connect to the port and send the token before any
+	 * command. Each client is served on {@link Workers#input()}.
+	 * <p>
+	 * The protocol is UTF-8 lines of space separated fields. Conversations are
+	 * named by phone number, and messages and ".convo" lines are always the last
+	 * field. Commands are answered with "OK" or "ERR reason":
+	 * <ul>
+	 * <li>"AUTH token"</li>
+	 * <li>"LIST" answers "CONVO number file" for each conversation</li>
+	 * <li>"READ number count" answers "LINE line" for up to "count" of the newest
+	 * lines of the conversation, newest first</li>
+	 * <li>"SEND number message" enqueues "message" and answers "OK id"</li>
+	 * <li>"SUBSCRIBE number" sends "RECEIVED number line" for each received
+	 * message and "DONE number id line" once the outcome of a sent message is
+	 * known, until the client disconnects</li>
+	 * <li>"QUIT"</li>
+	 * </ul>
+	 *
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	public void run() throws IOException, MessagingException {
+		Metrics.start();
+		outbound = OutboundQueue.get(accounts);
+		outbound.setErrorHandler(e -> System.err.println("Could not send: " + e));
+		dispatcher = InboxDispatcher.get(accounts);
+		dispatcher.setErrorHandler(e -> System.err.println("Could not receive: " + e));
+		dispatcher.start();
+		server = new ServerSocket((int) Settings.getLong("daemon.port", 0), 50, InetAddress.getLoopbackAddress());
+		writeFile(server.getLocalPort());
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "climessage-daemon-stop"));
+		System.out.println("Listening on " + server.getLocalSocketAddress());
+		Workers.lookup().execute(() -> {
+			try {
+				accounts.warm();
+			} catch (MessagingException e) {
+				System.err.println("Could not connect: " + e);
+			}
+		});
+		while (!server.isClosed()) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				break;
+			}
+			Workers.input().execute(() -> serve(socket));
+		}
+	}
+
+	/**
+	 * Stops accepting clients, deletes "userdata/daemon.properties", stops
+	 * watching the inbox, and closes the SMTP connections. Messages still pending
+	 * stay in the journal of the {@link OutboundQueue}.
+	 */
+	public void stop() {
+		file.delete();
+		try {
+			if (server != null)
+				server.close();
+		} catch (IOException e) {
+		}
+		if (dispatcher != null)
+			dispatcher.stop();
+		SearchIndex.flush();
+		SmtpPool.closeAll();
+	}
+
+	/**
+	 * Serves client {@link socket} until it quits or disconnects.
+	 *
+	 * @param socket connected client
+	 */
+	private void serve(Socket socket) {
+		Client client = null;
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+			s.setTcpNoDelay(true);
+			client = new Client(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+			String line = in.readLine();
+			if (line == null || !line.equals("AUTH " + token)) {
+				client.send("ERR unauthorized");
+				return;
+			}
+			client.send("OK");
+			while ((line = in.readLine()) != null && !line.equals("QUIT")) {
+				try {
+					handle(client, line);
+				} catch (IOException | RuntimeException e) {
+					client.send("ERR " + e);
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			if (client != null)
+				for (Set<Client> clients : subscribers.values())
+					clients.remove(client);
+		}
+	}
+
+	/**
+	 * Handles command {@link line} of {@link client}.
+	 *
+	 * @param client client that sent {@link line}
+	 * @param line   command
+	 * @throws IOException
+	 */
+	private void handle(Client client, String line) throws IOException {
+		String[] fields = line.split(" ", 3);
+		Map<String, File> conversations = InboxDispatcher.conversations();
+		if (fields[0].equals("LIST")) {
+			StringBuilder reply = new StringBuilder();
+			for (Map.Entry<String, File> conversation : conversations.entrySet())
+				reply.append("CONVO ").append(conversation.getKey()).append(" ")
+						.append(conversation.getValue().getName()).append("\n");
+			client.send(reply.append("OK").toString());
+			return;
+		}
+		if (fields.length < 2 || !conversations.containsKey(fields[1])) {
+			client.send("ERR unknown conversation");
+			return;
+		}
+		String number = fields[1];
+		File log = conversations.get(number);
+		if (fields[0].equals("READ") && fields.length == 3) {
+			StringBuilder reply = new StringBuilder();
+			for (String message : new ConversationLog(log).readOlder(Integer.parseInt(fields[2])))
+				reply.append("LINE ").append(message).append("\n");
+			client.send(reply.append("OK").toString());
+		} else if (fields[0].equals("SEND") && fields.length == 3) {
+			String recipient = gateways.computeIfAbsent(number, EmailUtils::getEmail);
+			if (recipient == null) {
+				client.send("ERR no gateway for " + number);
+				return;
+			}
+			listen(number, log);
+			client.send("OK " + outbound.enqueue(log, recipient, fields[2]).getId());
+		} else if (fields[0].equals("SUBSCRIBE")) {
+			subscribers.computeIfAbsent(number, key -> ConcurrentHashMap.newKeySet()).add(client);
+			listen(number, log);
+			client.send("OK");
+		} else
+			client.send("ERR unknown command");
+	}
+
+	/**
+	 * Listens for received messages and outcomes of sent messages of the
+	 * conversation of {@link number} to send them to its subscribers.
+	 *
+	 * @param number phone number of the conversation
+	 * @param log    ".convo" file of the conversation
+	 */
+	private void listen(String number, File log) {
+		outbound.setListener(log,
+				message -> publish(number, "DONE " + number + " " + message.getId() + " " + message.getLine()));
+		dispatcher.register(number, email -> receive(log, number, email));
+	}
+
+	/**
+	 * Appends the messages of received email {@link email} to {@link log} and
+	 * sends them to the subscribers of {@link number}.
+	 *
+	 * @param log    ".convo" file of the conversation
+	 * @param number phone number of the conversation
+	 * @param email  received email
+	 * @throws IOException if the messages could not be appended
+	 */
+	private void receive(File log, String number, ReceivedEmail email) throws IOException {
+		ConversationLog conversation = new ConversationLog(log);
+		List<String> lines = new ArrayList<String>();
+		for (String message : email.getMessages()) {
+			String line = ConversationLog.format(message, "received");
+			conversation.append(line);
+			lines.add(line);
+		}
+		for (String line : lines)
+			publish(number, "RECEIVED " + number + " " + line);
+	}
+
+	/**
+	 * Sends {@link event} to every subscriber of {@link number}. Subscribers that
+	 * cannot be written to are removed.
+	 *
+	 * @param number phone number of the conversation
+	 * @param event  event to send
+	 */
+	private void publish(String number, String event) {
+		Set<Client> clients = subscribers.get(number);
+		if (clients == null)
+			return;
+		for (Client client : clients) {
+			try {
+				client.send(event);
+			} catch (IOException e) {
+				clients.remove(client);
+			}
+		}
+	}
+
+	/**
+	 * Writes {@link port} and {@link #token} to "userdata/daemon.properties",
+	 * readable only by the owner where the file system supports it.
+	 *
+	 * @param port port the daemon listens on
+	 * @throws IOException
+	 */
+	private void writeFile(int port) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("port", Integer.toString(port));
+		properties.setProperty("token", token);
+		File temp = new File(file.getPath() + ".tmp");
+		temp.delete();
+		try {
+			Files.createFile(temp.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+		}
+		try (FileOutputStream out = new FileOutputStream(temp)) {
+			properties.store(out, null);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Generates a random token for clients to authenticate with.
+	 *
+	 * @return String 128 random bits in hexadecimal
+	 */
+	private static String token() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder ret = new StringBuilder();
+		for (byte b : bytes)
+			ret.append(String.format("%02x", b));
+		return ret.toString();
+	}
+
+	private static class Client {
+
+		private final Writer out;
+
+		/**
+		 * Constructs a new Client that writes to {@link out}.
+		 *
+		 * @param out writer of the connection to the client
+		 */
+		private Client(Writer out) {
+			this.out = out;
+		}
+
+		/**
+		 * Sends {@link lines} to the client at once.
+		 *
+		 * @param lines one or more lines, separated by line breaks
+		 * @throws IOException
+		 */
+		private synchronized void send(String lines) throws IOException {
+			out.write(lines);
+			out.write("\n");
+			out.flush();
+		}
+	}
+}
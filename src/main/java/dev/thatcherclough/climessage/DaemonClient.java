@@ -0,0 +1,207 @@
+package dev.thatcherclough.climessage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+public class DaemonClient {
+
+	private static final File file = new File("userdata" + File.separator + "daemon.properties");
+	private static final int CONNECT_TIMEOUT_MILLIS = 250;
+
+	private final Socket socket;
+	private final BufferedReader in;
+	private final Writer out;
+	private final BlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+	private final ExecutorService events = Workers.newPool("events", 1);
+	private Consumer<String> onReceived = null;
+	private BiConsumer<String, String> onDone = null;
+	private Runnable onClose = null;
+
+	/**
+	 * Constructs a new DaemonClient on connected socket {@link socket}.
+	 *
+	 * @param socket socket connected to a {@link Daemon}
+	 * @throws IOException
+	 */
+	private DaemonClient(Socket socket) throws IOException {
+		this.socket = socket;
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Connects to the {@link Daemon} running for "userdata".
+	 * <p>
+	 * The port and token are read from "userdata/daemon.properties". Replies and
+	 * events are read on {@link Workers#receive()}, and events are handed to the
+	 * listeners of {@link #subscribe(String, Consumer, BiConsumer, Runnable)} on
+	 * a thread of their own, in order.
+	 *
+	 * @return DaemonClient connected to the daemon, or null if no daemon is
+	 *         running
+	 */
+	public static DaemonClient connect() {
+		if (!file.isFile())
+			return null;
+		Socket socket = new Socket();
+		try {
+			Properties properties = new Properties();
+			try (FileInputStream in = new FileInputStream(file)) {
+				properties.load(in);
+			}
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					Integer.parseInt(properties.getProperty("port"))), CONNECT_TIMEOUT_MILLIS);
+			socket.setTcpNoDelay(true);
+			DaemonClient client = new DaemonClient(socket);
+			client.write("AUTH " + properties.getProperty("token"));
+			if (!"OK".equals(client.in.readLine())) {
+				client.close();
+				return null;
+			}
+			Workers.receive().execute(client::read);
+			return client;
+		} catch (IOException | RuntimeException e) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Enqueues {@link message} to be sent to the conversation of phone number
+	 * {@link number}.
+	 *
+	 * @param number  phone number of the conversation
+	 * @param message message to send
+	 * @return String id of the enqueued message
+	 * @throws IOException
+	 */
+	public String send(String number, String message) throws IOException {
+		return request("SEND " + number + " " + message).get(0).substring(3);
+	}
+
+	/**
+	 * Subscribes to the conversation of phone number {@link number}.
+	 * <p>
+	 * Received messages are passed to {@link onReceived} as logged ".convo"
+	 * lines. Outcomes of sent messages are passed to {@link onDone} as the id of
+	 * the message and its logged line. {@link onClose} runs if the connection to
+	 * the daemon is lost.
+	 *
+	 * @param number     phone number of the conversation
+	 * @param onReceived consumer of received lines
+	 * @param onDone     consumer of ids and lines of sent messages
+	 * @param onClose    runs when the connection is lost
+	 * @throws IOException
+	 */
+	public void subscribe(String number, Consumer<String> onReceived, BiConsumer<String, String> onDone,
+			Runnable onClose) throws IOException {
+		this.onReceived = onReceived;
+		this.onDone = onDone;
+		this.onClose = onClose;
+		request("SUBSCRIBE " + number);
+	}
+
+	/**
+	 * Quits and closes the connection to the daemon.
+	 */
+	public void close() {
+		onClose = null;
+		try {
+			write("QUIT");
+		} catch (IOException e) {
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		events.shutdown();
+	}
+
+	/**
+	 * Sends command {@link command} and waits for its reply.
+	 *
+	 * @param command command to send
+	 * @return List of the lines of the reply, starting with the "OK" line
+	 * @throws IOException if the daemon answered "ERR" or the connection was lost
+	 */
+	private synchronized List<String> request(String command) throws IOException {
+		write(command);
+		List<String> ret = new ArrayList<String>();
+		try {
+			while (true) {
+				String line = replies.take();
+				if (line.startsWith("ERR"))
+					throw new IOException(line.length() > 4 ? line.substring(4) : "disconnected");
+				if (line.equals("OK") || line.startsWith("OK ")) {
+					ret.add(0, line);
+					return ret;
+				}
+				ret.add(line);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Writes {@link line} to the daemon.
+	 *
+	 * @param line line to write
+	 * @throws IOException
+	 */
+	private void write(String line) throws IOException {
+		synchronized (out) {
+			out.write(line);
+			out.write("\n");
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads lines from the daemon until the connection is closed, handing events
+	 * to {@link #events} and everything else to {@link #replies}.
+	 */
+	private void read() {
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ", 4);
+				if (fields[0].equals("RECEIVED") && fields.length >= 3) {
+					String received = line.substring(fields[0].length() + fields[1].length() + 2);
+					events.execute(() -> onReceived.accept(received));
+				} else if (fields[0].equals("DONE") && fields.length == 4)
+					events.execute(() -> onDone.accept(fields[2], fields[3]));
+				else
+					replies.add(line);
+			}
+		} catch (IOException | RejectedExecutionException e) {
+		} finally {
+			replies.add("ERR");
+			Runnable closed = onClose;
+			if (closed != null && !events.isShutdown())
+				events.execute(closed);
+		}
+	}
+}
@@ -1,47 +1,52 @@
 package dev.thatcherclough.climessage;
 
-import javax.mail.search.FlagTerm;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
-import javax.mail.internet.MimeMultipart;
-import javax.mail.Multipart;
+import javax.mail.search.AndTerm;
+import javax.mail.search.FlagTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.Address;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.InternetAddress;
 import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.Transport;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
 import javax.mail.Message;
+import javax.mail.Part;
 import javax.mail.Folder;
-import javax.mail.Store;
+import javax.mail.FetchProfile;
+import javax.mail.UIDFolder;
 import java.io.IOException;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
 public class EmailUtils {
 
+	private static final Histogram UIDS = Metrics.histogram("imap.uids");
+	private static final Histogram SEARCH = Metrics.histogram("imap.search");
+	private static final Histogram FETCH = Metrics.histogram("imap.fetch");
+	private static final Histogram BODY = Metrics.histogram("imap.body");
+	private static final LongAdder ERRORS = Metrics.counter("receive.errors");
+
 	/**
-	 * Checks credentials {@link address} and {@link password} to be valid.
+	 * Checks the address and password of {@link account} to be valid.
 	 * 
-	 * @param address  G-Mail address
-	 * @param password supposed password of {@link address}
+	 * @param account account to check
 	 * @return boolean if credentials are valid
 	 */
-	public static boolean checkCreds(String address, String password) {
+	public static boolean checkCreds(Account account) {
 		try {
-			Properties properties = new Properties();
-			properties.put("mail.smtp.host", "smtp.gmail.com");
-			properties.put("mail.smtp.port", "465");
-			properties.put("mail.smtp.auth", "true");
-			properties.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
-			Session session = Session.getInstance(properties, new javax.mail.Authenticator() {
-				protected PasswordAuthentication getPasswordAuthentication() {
-					return new PasswordAuthentication(address, password);
-				}
-			});
-			Transport transport = session.getTransport("smtp");
-			transport.connect(address, password);
+			Transport transport = smtpSession(account).getTransport("smtp");
+			transport.connect(account.getAddress(), account.getPassword());
+			transport.close();
 			return true;
 		} catch (Exception e) {
 			return false;
@@ -49,114 +54,285 @@ public class EmailUtils {
 	}
 
 	/**
-	 * Sends email from {@link address} to {@link recipient} with text {@link body}.
+	 * Creates a new {@link javax.mail.Session} for sending email from
+	 * {@link account} through its SMTP host and port, "smtp.gmail.com" on port 465
+	 * unless configured otherwise.
 	 * 
-	 * @param address   G-Mail address to send email from
-	 * @param password  password to {@link address}
-	 * @param recipient receiver of email
-	 * @param body      body of email
-	 * @throws MessagingException
+	 * @param account account to send email from
+	 * @return Session for sending email from {@link account}
 	 */
-	public static void sendEmail(String address, String password, String recipient, String body)
-			throws MessagingException {
+	public static Session smtpSession(Account account) {
 		Properties properties = new Properties();
-		properties.put("mail.smtp.host", "smtp.gmail.com");
-		properties.put("mail.smtp.port", "465");
+		properties.put("mail.smtp.host", account.getSmtpHost());
+		properties.put("mail.smtp.port", account.getSmtpPort());
 		properties.put("mail.smtp.auth", "true");
 		properties.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
-		Session session = Session.getInstance(properties, new javax.mail.Authenticator() {
+		return Session.getInstance(properties, new javax.mail.Authenticator() {
 			protected PasswordAuthentication getPasswordAuthentication() {
-				return new PasswordAuthentication(address, password);
+				return new PasswordAuthentication(account.getAddress(), account.getPassword());
 			}
 		});
-		Message message = new MimeMessage(session);
+	}
+
+	/**
+	 * Sends email from {@link account} to {@link recipient} with text {@link body}
+	 * on a pooled transport of {@link SmtpPool}.
+	 * 
+	 * @param account   account to send email from
+	 * @param recipient receiver of email
+	 * @param body      body of email
+	 * @throws MessagingException
+	 */
+	public static void sendEmail(Account account, String recipient, String body) throws MessagingException {
+		SmtpPool pool = SmtpPool.get(account);
+		Message message = new MimeMessage(pool.getSession());
+		message.setFrom(new InternetAddress(account.getAddress()));
 		message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipient));
 		message.setText(body);
-		Transport.send(message);
+		pool.send(message);
 	}
 
 	/**
-	 * Receives email from {@link sender} in inbox of G-Mail account with address
-	 * {@link address}.
+	 * Creates a new {@link javax.mail.Session} for reading the inbox of
+	 * {@link account} on its IMAP host and port, "imap.gmail.com" on port 993
+	 * unless configured otherwise.
 	 * 
-	 * @param address  G-Mail address that email to receive was sent to
-	 * @param password password to {@link address}
-	 * @param sender   sender of email to receive
-	 * @return String body of received email
-	 * @throws MessagingException
-	 * @throws IOException
+	 * @param account account of the inbox to read
+	 * @return Session for reading the inbox of {@link account}
 	 */
-	public static String recEmail(String address, String password, String sender)
-			throws MessagingException, IOException {
+	public static Session imapSession(Account account) {
 		Properties properties = new Properties();
-		properties.setProperty("mail.host", "imap.gmail.com");
-		properties.setProperty("mail.port", "995");
+		properties.setProperty("mail.host", account.getImapHost());
+		properties.setProperty("mail.imaps.port", account.getImapPort());
 		properties.setProperty("mail.transport.protocol", "imaps");
-		Session session = Session.getInstance(properties, new javax.mail.Authenticator() {
+		return Session.getInstance(properties, new javax.mail.Authenticator() {
 			protected PasswordAuthentication getPasswordAuthentication() {
-				return new PasswordAuthentication(address, password);
+				return new PasswordAuthentication(account.getAddress(), account.getPassword());
 			}
 		});
-		Store store = session.getStore("imaps");
-		store.connect();
-		Folder inbox = store.getFolder("INBOX");
-		inbox.open(Folder.READ_WRITE);
-		Message messages[] = inbox.search(new FlagTerm(new Flags(Flag.SEEN), false));
-		String ret = null;
-		for (int k = messages.length - 11; k < messages.length; k++) {
-			Message message = messages[k];
-			if (((InternetAddress) message.getFrom()[0]).getAddress().contains(sender)) {
-				Object content = message.getContent();
-				if (content instanceof String)
-					ret = (String) content;
-				else if (content instanceof Multipart) {
-					MimeMultipart mimeMultiPart = (MimeMultipart) content;
-					String body = "";
-					for (int i = 0; i < mimeMultiPart.getCount(); i++)
-						body += (String) mimeMultiPart.getBodyPart(i).getContent();
-					ret = body;
+	}
+
+	/**
+	 * Receives new email from any of {@link senders} in already open folder
+	 * {@link inbox} and passes each one to {@link handler}.
+	 * <p>
+	 * Only email with a UID above the high-water mark of the inbox in
+	 * {@link state} is considered, so each call costs O(new email). The mark is
+	 * shared by all senders, so {@link senders} should include every phone number
+	 * whose email should be received. The unseen and sender filters run on the
+	 * server as one SEARCH, the envelopes, flags, and MIME structure of the results
+	 * are prefetched in one FETCH, and only the text of matching email is
+	 * downloaded with {@link BodyExtractor}. Attachments, such as the pictures of
+	 * MMS, are streamed to the {@link AttachmentStore} unless setting
+	 * "receive.media" is false. Email whose Message-ID was already received is
+	 * skipped. Email is only marked received once its text and attachments were
+	 * stored and {@link handler} returned. If that fails, the failure is recorded
+	 * in counter "receive.errors" and in {@link state}, and the high-water mark
+	 * stays below the email, so it is tried again on the next call while email
+	 * after it is skipped by Message-ID. After setting "receive.max.attempts" (5)
+	 * failed attempts, the mark moves past the email and an IOException is
+	 * thrown once the rest of the email was received. Senders are matched with
+	 * {@link #getSender(String, Collection)}. The inbox is left untouched unless
+	 * setting "delete.received" is true, in which case received email is deleted.
+	 * The time of each stage is recorded in histograms "imap.uids",
+	 * "imap.search", "imap.fetch", and "imap.body".
+	 * 
+	 * @param inbox   open inbox
+	 * @param state   sync state of the inbox
+	 * @param senders phone numbers of senders of email to receive
+	 * @param handler handler of each received email in the order they arrived
+	 * @throws MessagingException
+	 * @throws IOException        if email was given up on after too many failed
+	 *                            attempts
+	 */
+	public static void recEmail(Folder inbox, SyncState state, Collection<String> senders,
+			ReceivedEmail.Handler handler) throws MessagingException, IOException {
+		long start = System.nanoTime();
+		UIDFolder uidInbox = (UIDFolder) inbox;
+		state.validate(uidInbox.getUIDValidity(), uidInbox.getUIDNext());
+		long lastUid = state.getLastUid("inbox");
+		List<Message> candidates = new ArrayList<Message>();
+		long highestUid = lastUid;
+		for (Message message : uidInbox.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID)) {
+			long uid = uidInbox.getUID(message);
+			if (uid > lastUid) {
+				candidates.add(message);
+				highestUid = Math.max(highestUid, uid);
+			}
+		}
+		UIDS.time(start);
+		if (candidates.isEmpty() || senders.isEmpty()) {
+			state.setLastUid("inbox", highestUid);
+			return;
+		}
+		SearchTerm senderTerms[] = new SearchTerm[senders.size()];
+		int index = 0;
+		for (String sender : senders)
+			senderTerms[index++] = new FromStringTerm(sender);
+		start = System.nanoTime();
+		Message messages[] = inbox.search(
+				new AndTerm(new FlagTerm(new Flags(Flag.SEEN), false),
+						senderTerms.length == 1 ? senderTerms[0] : new OrTerm(senderTerms)),
+				candidates.toArray(new Message[0]));
+		SEARCH.time(start);
+		start = System.nanoTime();
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.FLAGS);
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		inbox.fetch(messages, profile);
+		FETCH.time(start);
+		boolean delete = Settings.getBoolean("delete.received", false);
+		boolean media = Settings.getBoolean("receive.media", true);
+		int maxAttempts = (int) Settings.getLong("receive.max.attempts", 5);
+		boolean deleted = false;
+		long retryAfter = highestUid;
+		IOException givenUp = null;
+		for (Message message : messages) {
+			Address[] fromAddresses = message.getFrom();
+			if (fromAddresses == null || fromAddresses.length == 0 || !(fromAddresses[0] instanceof InternetAddress))
+				continue;
+			String sender = getSender(((InternetAddress) fromAddresses[0]).getAddress(), senders);
+			String messageId = ((MimeMessage) message).getMessageID();
+			if (sender == null || state.isSeen(messageId))
+				continue;
+			long uid = uidInbox.getUID(message);
+			try {
+				start = System.nanoTime();
+				BodyExtractor extractor = new BodyExtractor(message);
+				String body = extractor.getText();
+				List<String> stored = new ArrayList<String>();
+				if (media)
+					for (Part attachment : extractor.getAttachments())
+						stored.add(AttachmentStore.store(attachment));
+				BODY.time(start);
+				if (body != null || !stored.isEmpty())
+					handler.handle(new ReceivedEmail(sender, body, message.getSentDate(), stored));
+			} catch (IOException | MessagingException | RuntimeException e) {
+				ERRORS.increment();
+				int attempts = state.addFailure(uid);
+				if (attempts < maxAttempts)
+					retryAfter = Math.min(retryAfter, uid - 1);
+				else {
+					IOException error = new IOException("Gave up receiving email " + uid + " from " + sender
+							+ " after " + attempts + " attempts", e);
+					if (givenUp == null)
+						givenUp = error;
+					else
+						givenUp.addSuppressed(error);
 				}
+				continue;
+			}
+			state.markSeen(messageId);
+			if (delete) {
 				message.setFlag(Flag.DELETED, true);
-				break;
+				deleted = true;
 			}
 		}
-		inbox.close(true);
-		store.close();
-		return ret;
+		if (deleted)
+			inbox.expunge();
+		state.setLastUid("inbox", retryAfter);
+		if (givenUp != null)
+			throw givenUp;
+	}
+
+	/**
+	 * Gets the phone number of {@link senders} that sent email from address
+	 * {@link from}.
+	 * <p>
+	 * The local part of {@link from} has to be the phone number, optionally with
+	 * country code 1, as gateways send from "5551234567@..." or
+	 * "15551234567@...".
+	 * 
+	 * @param from    email address of the sender
+	 * @param senders phone numbers of senders of email to receive
+	 * @return String phone number that sent the email, or null if none did
+	 */
+	public static String getSender(String from, Collection<String> senders) {
+		int at = from.indexOf('@');
+		String local = at < 0 ? from : from.substring(0, at);
+		for (String number : senders)
+			if (local.equals(number) || local.equals("1" + number))
+				return number;
+		return null;
 	}
 
 	/**
 	 * Gets email address that forwards to phone number {@link number}.
+	 * <p>
+	 * The carrier of {@link number} is looked up in the offline
+	 * {@link CarrierDatabase}. If it is not found there and setting
+	 * "carrier.lookup.web" is true, it is looked up on fonefinder.net through
+	 * {@link CarrierCache}, so only the first lookup of an NPA-NXX-block needs the
+	 * network.
 	 * 
 	 * @param number phone number to get forwarding email of
 	 * @return String email that forwards to {@link number}
 	 */
 	public static String getEmail(String number) {
 		try {
-			Document document = Jsoup.connect("http://www.fonefinder.net/findome.php?npa=" + number.substring(0, 3)
-					+ "&nxx=" + number.substring(3, 6) + "&thoublock=" + number.substring(6)).get();
-			String carrierInfo = document.select(
-					"body > center:nth-child(1) > table:nth-child(6) > tbody > tr:nth-child(2) > td:nth-child(5) > a")
-					.toString();
-			String carrier = carrierInfo.substring(31, carrierInfo.indexOf(".php"));
-			if (carrier.equals("att"))
-				return number + "@txt.att.net";
-			else if (carrier.equals("tmobile"))
-				return number + "@tmomail.net";
-			else if (carrier.equals("verizon"))
-				return number + "@vtext.com";
-			else if (carrier.equals("sprint"))
-				return number + "@messaging.sprintpcs.com";
-			else if (carrier.equals("metropcs"))
-				return number + "@mymetropcs.com";
-			else if (carrier.equals("boostmobile"))
-				return number + "@sms.myboostmobile.com";
-			else if (carrier.equals("cricket"))
-				return number + "@sms.cricketwireless.net";
-			else
-				return null;
+			String carrier = CarrierDatabase.lookup(number);
+			if (carrier == null && Settings.getBoolean("carrier.lookup.web", true))
+				carrier = CarrierCache.get(number, EmailUtils::lookupCarrier);
+			return carrier == null ? null : getGateway(number, carrier);
 		} catch (Exception e) {
 			return null;
 		}
 	}
+
+	/**
+	 * Gets the carrier of phone number {@link number} from fonefinder.net.
+	 * 
+	 * @param number phone number to get carrier of
+	 * @return String carrier of {@link number}, or an empty String if it has none
+	 * @throws IOException
+	 */
+	private static String lookupCarrier(String number) throws IOException {
+		return parseCarrier(Jsoup.connect("http://www.fonefinder.net/findome.php?npa=" + number.substring(0, 3)
+				+ "&nxx=" + number.substring(3, 6) + "&thoublock=" + number.substring(6)).get());
+	}
+
+	/**
+	 * Gets the carrier from fonefinder.net result page {@link document}.
+	 * 
+	 * @param document result page of a phone number
+	 * @return String carrier on {@link document}, or an empty String if it has
+	 *         none
+	 */
+	public static String parseCarrier(Document document) {
+		String carrierInfo = document.select(
+				"body > center:nth-child(1) > table:nth-child(6) > tbody > tr:nth-child(2) > td:nth-child(5) > a")
+				.toString();
+		if (!carrierInfo.contains(".php"))
+			return "";
+		return carrierInfo.substring(31, carrierInfo.indexOf(".php"));
+	}
+
+	/**
+	 * Gets email address of carrier {@link carrier} that forwards to phone number
+	 * {@link number}.
+	 * 
+	 * @param number  phone number to get forwarding email of
+	 * @param carrier carrier of {@link number}
+	 * @return String email that forwards to {@link number}, or null if
+	 *         {@link carrier} is not supported
+	 */
+	private static String getGateway(String number, String carrier) {
+		if (carrier.equals("att"))
+			return number + "@txt.att.net";
+		else if (carrier.equals("tmobile"))
+			return number + "@tmomail.net";
+		else if (carrier.equals("verizon"))
+			return number + "@vtext.com";
+		else if (carrier.equals("sprint"))
+			return number + "@messaging.sprintpcs.com";
+		else if (carrier.equals("metropcs"))
+			return number + "@mymetropcs.com";
+		else if (carrier.equals("boostmobile"))
+			return number + "@sms.myboostmobile.com";
+		else if (carrier.equals("cricket"))
+			return number + "@sms.cricketwireless.net";
+		else
+			return null;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+package dev.thatcherclough.climessage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Histogram {
+
+	private static final int EXACT = 8;
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = EXACT + (63 - 3) * SUB_BUCKETS;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+	/**
+	 * Constructs a new empty Histogram of durations in microseconds.
+	 * <p>
+	 * Durations below {@link #EXACT} microseconds are counted exactly. Larger
+	 * durations are counted in {@link #SUB_BUCKETS} buckets per power of two, so
+	 * percentiles are within 25% of the recorded durations. Recording only
+	 * increments a {@link LongAdder}, so it costs a few nanoseconds and does not
+	 * contend between threads.
+	 */
+	public Histogram() {
+		for (int k = 0; k < BUCKETS; k++)
+			counts[k] = new LongAdder();
+	}
+
+	/**
+	 * Records the time since {@link startNanos}.
+	 *
+	 * @param startNanos {@link System#nanoTime()} when the timed stage started
+	 */
+	public void time(long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Records a duration of {@link micros} microseconds.
+	 *
+	 * @param micros duration in microseconds
+	 */
+	public void record(long micros) {
+		micros = Math.max(0, micros);
+		counts[bucket(micros)].increment();
+		sum.add(micros);
+		max.accumulate(micros);
+	}
+
+	/**
+	 * Gets a snapshot of the recorded durations.
+	 *
+	 * @return Snapshot of the recorded durations
+	 */
+	public Snapshot snapshot() {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int k = 0; k < BUCKETS; k++)
+			count += snapshot[k] = counts[k].sum();
+		long largest = max.get();
+		return new Snapshot(count, count == 0 ? 0 : sum.sum() / count, percentile(snapshot, count, 0.5, largest),
+				percentile(snapshot, count, 0.99, largest), largest);
+	}
+
+	/**
+	 * Gets the bucket of duration {@link micros}.
+	 *
+	 * @param micros duration in microseconds
+	 * @return int index of the bucket
+	 */
+	private static int bucket(long micros) {
+		if (micros < EXACT)
+			return (int) micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+		return EXACT + (exponent - 3) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest duration counted in bucket {@link bucket}.
+	 *
+	 * @param bucket index of the bucket
+	 * @return long largest duration in microseconds
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < EXACT)
+			return bucket;
+		int exponent = 3 + (bucket - EXACT) / SUB_BUCKETS;
+		int sub = (bucket - EXACT) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+	}
+
+	/**
+	 * Gets the duration that {@link quantile} of the durations in {@link buckets}
+	 * are at most.
+	 *
+	 * @param buckets  counts of the buckets
+	 * @param count    sum of {@link buckets}
+	 * @param quantile quantile between 0 and 1
+	 * @param largest  largest recorded duration
+	 * @return long duration in microseconds
+	 */
+	private static long percentile(long[] buckets, long count, double quantile, long largest) {
+		long rank = (long) Math.ceil(count * quantile);
+		long seen = 0;
+		for (int k = 0; k < buckets.length; k++) {
+			seen += buckets[k];
+			if (seen >= rank && seen > 0)
+				return Math.min(upperBound(k), largest);
+		}
+		return largest;
+	}
+
+	public static class Snapshot {
+
+		private final long count;
+		private final long meanMicros;
+		private final long p50Micros;
+		private final long p99Micros;
+		private final long maxMicros;
+
+		/**
+		 * Constructs a new Snapshot.
+		 *
+		 * @param count      number of recorded durations
+		 * @param meanMicros mean duration in microseconds
+		 * @param p50Micros  median duration in microseconds
+		 * @param p99Micros  99th percentile duration in microseconds
+		 * @param maxMicros  largest duration in microseconds
+		 */
+		public Snapshot(long count, long meanMicros, long p50Micros, long p99Micros, long maxMicros) {
+			this.count = count;
+			this.meanMicros = meanMicros;
+			this.p50Micros = p50Micros;
+			this.p99Micros = p99Micros;
+			this.maxMicros = maxMicros;
+		}
+
+		/**
+		 * Gets the number of recorded durations.
+		 *
+		 * @return long number of recorded durations
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the mean duration.
+		 *
+		 * @return long mean duration in microseconds
+		 */
+		public long getMeanMicros() {
+			return meanMicros;
+		}
+
+		/**
+		 * Gets the median duration.
+		 *
+		 * @return long median duration in microseconds
+		 */
+		public long getP50Micros() {
+			return p50Micros;
+		}
+
+		/**
+		 * Gets the 99th percentile duration.
+		 *
+		 * @return long 99th percentile duration in microseconds
+		 */
+		public long getP99Micros() {
+			return p99Micros;
+		}
+
+		/**
+		 * Gets the largest duration.
+		 *
+		 * @return long largest duration in microseconds
+		 */
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+
+public class InboxDispatcher {
+
+	private static final Map<String, InboxDispatcher> dispatchers = new ConcurrentHashMap<String, InboxDispatcher>();
+	private static final Histogram DISPATCH = Metrics.histogram("receive.dispatch");
+	private static final File userdata = new File("userdata");
+	private static Map<String, File> conversations = null;
+	private static long conversationsModified = 0;
+
+	private final String key;
+	private final List<InboxWatcher> watchers = new ArrayList<InboxWatcher>();
+	private final Map<String, ReceivedEmail.Handler> handlers = new ConcurrentHashMap<String, ReceivedEmail.Handler>();
+	private volatile Consumer<Exception> errorHandler = null;
+	private boolean started = false;
+
+	/**
+	 * Constructs a new InboxDispatcher for the inboxes of the accounts of
+	 * {@link accounts}.
+	 * <p>
+	 * Replies go to the account a message was sent from, which can be any
+	 * account of the ring after a failover, so every inbox is watched, each with
+	 * an {@link InboxWatcher} and {@link SyncState} of its own.
+	 *
+	 * @param key      address of the first account of {@link accounts}
+	 * @param accounts accounts whose inboxes to dispatch
+	 */
+	private InboxDispatcher(String key, AccountRing accounts) {
+		this.key = key;
+		for (Account account : accounts.getAccounts()) {
+			SyncState state = SyncState.get(account.getAddress());
+			watchers.add(new InboxWatcher(account, inbox -> dispatch(inbox, state)));
+		}
+	}
+
+	/**
+	 * Gets the InboxDispatcher of the accounts of {@link accounts}, creating it if
+	 * it does not exist yet.
+	 *
+	 * @param accounts accounts whose inboxes to dispatch
+	 * @return InboxDispatcher of {@link accounts}
+	 */
+	public static InboxDispatcher get(AccountRing accounts) {
+		return dispatchers.computeIfAbsent(accounts.getAccounts().get(0).getAddress(),
+				key -> new InboxDispatcher(key, accounts));
+	}
+
+	/**
+	 * Registers {@link handler} to receive every new email sent from phone number
+	 * {@link number} and starts watching the inbox if not already watching.
+	 *
+	 * @param number  phone number of the conversation
+	 * @param handler handler of email sent from {@link number}
+	 */
+	public synchronized void register(String number, ReceivedEmail.Handler handler) {
+		handlers.put(number, handler);
+		start();
+	}
+
+	/**
+	 * Starts watching the inboxes if not already watching. Until handlers are
+	 * registered, received email is only appended to ".convo" files.
+	 */
+	public synchronized void start() {
+		if (!started) {
+			started = true;
+			for (InboxWatcher watcher : watchers)
+				Workers.receive().execute(() -> {
+					try {
+						watcher.run();
+					} catch (IOException | RuntimeException e) {
+						Consumer<Exception> errors = errorHandler;
+						if (errors != null)
+							errors.accept(e);
+					} catch (InterruptedException e) {
+					}
+				});
+		}
+	}
+
+	/**
+	 * Sets {@link errorHandler} to be passed every error of receiving email from
+	 * any of the inboxes, so it can be shown to the user.
+	 *
+	 * @param errorHandler handler of errors, or null to only count them
+	 */
+	public void setErrorHandler(Consumer<Exception> errorHandler) {
+		this.errorHandler = errorHandler;
+		for (InboxWatcher watcher : watchers)
+			watcher.setErrorHandler(errorHandler);
+	}
+
+	/**
+	 * Unregisters the handler of phone number {@link number}.
+	 * <p>
+	 * Email sent from {@link number} is still appended to its ".convo" file.
+	 *
+	 * @param number phone number of the conversation
+	 */
+	public void unregister(String number) {
+		handlers.remove(number);
+	}
+
+	/**
+	 * Gets a future that completes once every inbox was connected to and synced
+	 * for the first time.
+	 *
+	 * @return CompletableFuture completed after the first sync
+	 */
+	public CompletableFuture<Void> getSynced() {
+		CompletableFuture<?>[] synced = new CompletableFuture<?>[watchers.size()];
+		for (int k = 0; k < synced.length; k++)
+			synced[k] = watchers.get(k).getSynced();
+		return CompletableFuture.allOf(synced);
+	}
+
+	/**
+	 * Stops watching the inboxes and removes this dispatcher so the next call of
+	 * {@link #get(AccountRing)} creates a new one.
+	 */
+	public synchronized void stop() {
+		dispatchers.remove(key, this);
+		for (InboxWatcher watcher : watchers)
+			watcher.stop();
+	}
+
+	/**
+	 * Fetches new email from every conversation once and routes each email by
+	 * sender.
+	 * <p>
+	 * Email from a registered phone number goes to its handler. Email from the
+	 * phone number of any other conversation in "userdata" is appended to that
+	 * conversation's ".convo" file so it is there the next time it is opened.
+	 * Email is only marked received once its handler returned or it was
+	 * appended, so email that could not be stored is received again.
+	 *
+	 * @param inbox open inbox
+	 * @param state sync state of {@link inbox}
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	private void dispatch(Folder inbox, SyncState state) throws MessagingException, IOException {
+		long start = System.nanoTime();
+		Map<String, File> logs = conversations();
+		Set<String> senders = new TreeSet<String>(logs.keySet());
+		senders.addAll(handlers.keySet());
+		EmailUtils.recEmail(inbox, state, senders, email -> {
+			ReceivedEmail.Handler handler = handlers.get(email.getSender());
+			if (handler != null)
+				handler.handle(email);
+			else if (logs.containsKey(email.getSender())) {
+				ConversationLog log = new ConversationLog(logs.get(email.getSender()));
+				for (String message : email.getMessages())
+					log.append(ConversationLog.format(message, "received"));
+			}
+		});
+		DISPATCH.time(start);
+	}
+
+	/**
+	 * Gets the ".convo" files in "userdata" by phone number.
+	 * <p>
+	 * The files are listed once and cached until
+	 * {@link #invalidateConversations()} is called or the modification time of
+	 * "userdata" changes, so a {@link Daemon} also finds conversations created by
+	 * another process.
+	 *
+	 * @return unmodifiable Map of phone numbers to ".convo" files
+	 */
+	public static synchronized Map<String, File> conversations() {
+		long modified = userdata.lastModified();
+		if (conversations != null && modified == conversationsModified)
+			return conversations;
+		Map<String, File> ret = new HashMap<String, File>();
+		File[] files = userdata.listFiles((dir, name) -> name.endsWith(".convo"));
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				ret.put(name.substring(name.lastIndexOf("-") + 1, name.lastIndexOf(".")), file);
+			}
+		}
+		conversations = Collections.unmodifiableMap(ret);
+		conversationsModified = modified;
+		return conversations;
+	}
+
+	/**
+	 * Makes the next call of {@link #conversations()} list the ".convo" files
+	 * again, so a conversation that was just created is found.
+	 */
+	public static synchronized void invalidateConversations() {
+		conversations = null;
+	}
+}
@@ -0,0 +1,223 @@
+package dev.thatcherclough.climessage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+public class InboxWatcher {
+
+	private static final long IDLE_RENEW_MINUTES = 9;
+	private static final long POLL_MILLIS = 3000;
+	private static final long RECONNECT_MILLIS = 3000;
+	private static final Histogram CONNECT = Metrics.histogram("imap.connect");
+	private static final Histogram POLL = Metrics.histogram("imap.poll");
+	private static final LongAdder CHANGES = Metrics.counter("imap.changes");
+	private static final LongAdder ERRORS = Metrics.counter("imap.errors");
+
+	/**
+	 * Handles the inbox each time the server reports a change.
+	 */
+	public interface Handler {
+		void handle(Folder inbox) throws MessagingException, IOException;
+	}
+
+	private final Account account;
+	private final Handler handler;
+	private final CompletableFuture<Void> synced = new CompletableFuture<Void>();
+	private volatile Store store = null;
+	private volatile IMAPFolder inbox = null;
+	private volatile boolean running = true;
+	private volatile Consumer<Exception> errorHandler = null;
+
+	/**
+	 * Constructs a new InboxWatcher for the inbox of {@link account}.
+	 *
+	 * @param account account of the inbox to watch
+	 * @param handler handler to run on every change of the inbox
+	 */
+	public InboxWatcher(Account account, Handler handler) {
+		this.account = account;
+		this.handler = handler;
+	}
+
+	/**
+	 * Watches the inbox until {@link #stop()} is called.
+	 * <p>
+	 * Holds one authenticated IMAP connection and runs {@link #handler} once after
+	 * connecting and then every time the server reports a change. Changes are
+	 * pushed with IDLE, which is renewed every {@link #IDLE_RENEW_MINUTES} minutes
+	 * to stay under the server timeout. If the server does not support IDLE, the
+	 * inbox is polled with NOOP every {@link #POLL_MILLIS} milliseconds instead. If
+	 * the connection drops, it is reopened after {@link #RECONNECT_MILLIS}
+	 * milliseconds. If {@link #handler} fails, the error is recorded in counter
+	 * "imap.errors" and passed to the handler set with
+	 * {@link #setErrorHandler(Consumer)}, and the inbox keeps being watched, so
+	 * the next change retries. Each NOOP poll is recorded in histogram
+	 * "imap.poll" and each change in counter "imap.changes".
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run() throws IOException, InterruptedException {
+		boolean failing = false;
+		while (running) {
+			ScheduledFuture<?> renew = null;
+			try {
+				IMAPFolder folder = connect();
+				if (folder == null)
+					break;
+				failing = false;
+				boolean idleSupported = ((IMAPStore) folder.getStore()).hasCapability("IDLE");
+				if (idleSupported)
+					renew = Workers.scheduler().scheduleWithFixedDelay(() -> {
+						try {
+							folder.getMessageCount();
+						} catch (MessagingException | IllegalStateException e) {
+						}
+					}, IDLE_RENEW_MINUTES, IDLE_RENEW_MINUTES, TimeUnit.MINUTES);
+				handle(folder);
+				synced.complete(null);
+				int count = folder.getMessageCount();
+				while (running) {
+					if (idleSupported)
+						folder.idle(true);
+					else
+						Thread.sleep(POLL_MILLIS);
+					if (!running)
+						break;
+					long start = System.nanoTime();
+					int newCount = folder.getMessageCount();
+					if (!idleSupported)
+						POLL.time(start);
+					if (idleSupported || newCount != count) {
+						CHANGES.increment();
+						handle(folder);
+					}
+					count = folder.getMessageCount();
+				}
+			} catch (MessagingException | IllegalStateException e) {
+				if (running) {
+					if (!failing)
+						error(e);
+					failing = true;
+					Thread.sleep(RECONNECT_MILLIS);
+				}
+			} finally {
+				if (renew != null)
+					renew.cancel(false);
+				disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Sets {@link errorHandler} to be passed every error of handling the inbox.
+	 *
+	 * @param errorHandler handler of errors, or null to only count them
+	 */
+	public void setErrorHandler(Consumer<Exception> errorHandler) {
+		this.errorHandler = errorHandler;
+	}
+
+	/**
+	 * Runs {@link #handler} on open inbox {@link folder}. Errors other than a
+	 * dropped connection are passed to {@link #error(Exception)} instead of
+	 * stopping the watch.
+	 *
+	 * @param folder open inbox to handle
+	 * @throws MessagingException if the connection to the inbox failed
+	 */
+	private void handle(IMAPFolder folder) throws MessagingException {
+		try {
+			handler.handle(folder);
+		} catch (IOException | RuntimeException e) {
+			error(e);
+		} catch (MessagingException e) {
+			if (folder.isOpen())
+				error(e);
+			else
+				throw e;
+		}
+	}
+
+	/**
+	 * Records error {@link e} in counter "imap.errors" and passes it to
+	 * {@link #errorHandler}, if set.
+	 *
+	 * @param e error to record
+	 */
+	private void error(Exception e) {
+		ERRORS.increment();
+		Consumer<Exception> errors = errorHandler;
+		if (errors != null)
+			errors.accept(e);
+	}
+
+	/**
+	 * Gets a future that completes once the inbox was connected to and
+	 * {@link #handler} ran for the first time.
+	 *
+	 * @return CompletableFuture completed after the first sync
+	 */
+	public CompletableFuture<Void> getSynced() {
+		return synced;
+	}
+
+	/**
+	 * Stops watching the inbox and closes the IMAP connection.
+	 */
+	public void stop() {
+		running = false;
+		disconnect();
+	}
+
+	/**
+	 * Connects to the IMAP host of {@link #account} and opens the inbox if not
+	 * already open.
+	 * <p>
+	 * The inbox is only opened read-write if setting "delete.received" is true.
+	 * The time it takes is recorded in histogram "imap.connect".
+	 *
+	 * @return IMAPFolder open inbox, or null if {@link #stop()} was called
+	 * @throws MessagingException
+	 */
+	private synchronized IMAPFolder connect() throws MessagingException {
+		if (!running)
+			return null;
+		if (inbox != null && inbox.isOpen())
+			return inbox;
+		long start = System.nanoTime();
+		store = EmailUtils.imapSession(account).getStore("imaps");
+		store.connect();
+		inbox = (IMAPFolder) store.getFolder("INBOX");
+		inbox.open(Settings.getBoolean("delete.received", false) ? Folder.READ_WRITE : Folder.READ_ONLY);
+		CONNECT.time(start);
+		return inbox;
+	}
+
+	/**
+	 * Closes the inbox and the IMAP connection, ignoring any error.
+	 */
+	private synchronized void disconnect() {
+		try {
+			if (inbox != null && inbox.isOpen())
+				inbox.close(false);
+		} catch (MessagingException e) {
+		}
+		try {
+			if (store != null)
+				store.close();
+		} catch (MessagingException e) {
+		}
+		inbox = null;
+		store = null;
+	}
+}
@@ -0,0 +1,270 @@
+package dev.thatcherclough.climessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+
+public class LineEditor {
+
+	private static final int HISTORY = 100;
+
+	private final InputStream in;
+	private final IntConsumer onScroll;
+	private final BiConsumer<String, Integer> onEdit;
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final ByteBuffer bytes = ByteBuffer.allocate(4096);
+	private final CharBuffer chars = CharBuffer.allocate(4096);
+	private final StringBuilder line = new StringBuilder();
+	private final List<String> history = new ArrayList<String>();
+	private int cursor = 0;
+	private int recalled = 0;
+	private String typed = "";
+	private boolean pasting = false;
+
+	/**
+	 * Constructs a new LineEditor that reads UTF-8 keyboard input from
+	 * {@link in} when the console is in "raw" mode.
+	 * <p>
+	 * PAGE UP and PAGE DOWN presses are passed to {@link onScroll} as 1 and -1
+	 * respectively. Typed characters are not printed; the line and the position of
+	 * the cursor in it, in code points, are passed to {@link onEdit} instead.
+	 *
+	 * @param in       stream of keyboard input
+	 * @param onScroll consumer of scroll directions
+	 * @param onEdit   consumer of the line and the position of the cursor
+	 */
+	public LineEditor(InputStream in, IntConsumer onScroll, BiConsumer<String, Integer> onEdit) {
+		this.in = in;
+		this.onScroll = onScroll;
+		this.onEdit = onEdit;
+		chars.flip();
+	}
+
+	/**
+	 * Reads a line.
+	 * <p>
+	 * LEFT, RIGHT, HOME, END, BACKSPACE, DELETE, CTRL + A, CTRL + E, and CTRL + U
+	 * edit the line at the cursor. UP and DOWN recall the last {@link #HISTORY}
+	 * lines. Input that is already available, such as a paste, is handled in bulk
+	 * and passed to {@link #onEdit} once. Line breaks inside a bracketed paste are
+	 * inserted as spaces instead of ending the line.
+	 *
+	 * @return String line, or null if CTRL + C was pressed or input ended
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+		line.setLength(0);
+		cursor = 0;
+		recalled = history.size();
+		boolean changed = false;
+		while (true) {
+			int next = read();
+			if (next == -1 || next == 3)
+				return null;
+			else if (next == 27)
+				changed |= escape();
+			else if (printable((char) next)) {
+				insert((char) next);
+				changed = true;
+			} else if (next == 13 || next == 10) {
+				if (line.length() > 0) {
+					String ret = line.toString();
+					remember(ret);
+					return ret;
+				}
+			} else if ((next == 127 || next == 8) && cursor > 0) {
+				int start = cursor - Character.charCount(line.codePointBefore(cursor));
+				line.delete(start, cursor);
+				cursor = start;
+				changed = true;
+			} else if (next == 1) {
+				cursor = 0;
+				changed = true;
+			} else if (next == 5) {
+				cursor = line.length();
+				changed = true;
+			} else if (next == 21) {
+				line.delete(0, cursor);
+				cursor = 0;
+				changed = true;
+			}
+			if (changed && !available()) {
+				onEdit.accept(line.toString(), line.codePointCount(0, cursor));
+				changed = false;
+			}
+		}
+	}
+
+	/**
+	 * Handles an escape sequence after ESC was read.
+	 *
+	 * @return boolean if the line or the cursor changed
+	 * @throws IOException
+	 */
+	private boolean escape() throws IOException {
+		int next = read();
+		if (next != '[' && next != 'O')
+			return false;
+		StringBuilder sequence = new StringBuilder();
+		while ((next = read()) != -1) {
+			sequence.append((char) next);
+			if (next >= 0x40 && next <= 0x7E)
+				break;
+		}
+		switch (sequence.toString()) {
+		case "A":
+			return recall(-1);
+		case "B":
+			return recall(1);
+		case "C":
+			if (cursor < line.length())
+				cursor += Character.charCount(line.codePointAt(cursor));
+			return true;
+		case "D":
+			if (cursor > 0)
+				cursor -= Character.charCount(line.codePointBefore(cursor));
+			return true;
+		case "H":
+		case "1~":
+		case "7~":
+			cursor = 0;
+			return true;
+		case "F":
+		case "4~":
+		case "8~":
+			cursor = line.length();
+			return true;
+		case "3~":
+			if (cursor < line.length())
+				line.delete(cursor, cursor + Character.charCount(line.codePointAt(cursor)));
+			return true;
+		case "5~":
+			onScroll.accept(1);
+			return false;
+		case "6~":
+			onScroll.accept(-1);
+			return false;
+		case "200~":
+			pasting = true;
+			return false;
+		case "201~":
+			pasting = false;
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Inserts {@link first} and every printable character already decoded after
+	 * it at the cursor at once, so a paste is not inserted one character at a
+	 * time.
+	 *
+	 * @param first first character to insert
+	 */
+	private void insert(char first) {
+		StringBuilder run = new StringBuilder();
+		run.append(printed(first));
+		while (chars.hasRemaining() && printable(chars.get(chars.position())))
+			run.append(printed(chars.get()));
+		line.insert(cursor, run);
+		cursor += run.length();
+	}
+
+	/**
+	 * Checks if {@link c} is inserted into the line.
+	 *
+	 * @param c character to check
+	 * @return boolean if {@link c} is inserted
+	 */
+	private boolean printable(char c) {
+		if (pasting && (c == 13 || c == 10 || c == 9))
+			return true;
+		return c >= 32 && c != 127 && !(c >= 0x80 && c < 0xA0);
+	}
+
+	/**
+	 * Gets the character inserted for {@link c}.
+	 *
+	 * @param c printable character
+	 * @return char space for line breaks and tabs, {@link c} otherwise
+	 */
+	private static char printed(char c) {
+		return c == 13 || c == 10 || c == 9 ? ' ' : c;
+	}
+
+	/**
+	 * Replaces the line with a line {@link direction} lines newer in the history.
+	 * <p>
+	 * The line being typed is kept while lines are recalled and restored once
+	 * DOWN goes past the newest line.
+	 *
+	 * @param direction -1 for an older line, 1 for a newer line
+	 * @return boolean if the line changed
+	 */
+	private boolean recall(int direction) {
+		int target = recalled + direction;
+		if (target < 0 || target > history.size())
+			return false;
+		if (recalled == history.size())
+			typed = line.toString();
+		recalled = target;
+		line.setLength(0);
+		line.append(target == history.size() ? typed : history.get(target));
+		cursor = line.length();
+		return true;
+	}
+
+	/**
+	 * Adds {@link sent} to the history unless it repeats the newest line.
+	 *
+	 * @param sent line that was read
+	 */
+	private void remember(String sent) {
+		if (history.isEmpty() || !history.get(history.size() - 1).equals(sent))
+			history.add(sent);
+		if (history.size() > HISTORY)
+			history.remove(0);
+	}
+
+	/**
+	 * Checks if more input can be handled without blocking.
+	 *
+	 * @return boolean if characters are decoded or bytes can be read
+	 * @throws IOException
+	 */
+	private boolean available() throws IOException {
+		return chars.hasRemaining() || in.available() > 0;
+	}
+
+	/**
+	 * Reads the next character, reading and decoding as many bytes as are
+	 * available when no decoded characters are left.
+	 *
+	 * @return int next character, or -1 if input ended
+	 * @throws IOException
+	 */
+	private int read() throws IOException {
+		while (!chars.hasRemaining()) {
+			int read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+			if (read == -1)
+				return -1;
+			bytes.position(bytes.position() + read);
+			bytes.flip();
+			chars.clear();
+			decoder.decode(bytes, chars, false);
+			chars.flip();
+			bytes.compact();
+		}
+		return chars.get();
+	}
+}
@@ -0,0 +1,96 @@
+package dev.thatcherclough.climessage;
+
+import java.util.Arrays;
+
+public class MessageIdSet {
+
+	private long[] current;
+	private long[] previous;
+	private int size = 0;
+
+	/**
+	 * Constructs a new MessageIdSet that remembers at least the last
+	 * {@link capacity} added Message-IDs.
+	 * <p>
+	 * Message-IDs are stored as 64-bit fingerprints in two open addressing tables.
+	 * When the current table is half full, it becomes the previous table and the
+	 * oldest table is cleared, so memory use stays fixed.
+	 *
+	 * @param capacity number of Message-IDs to remember
+	 */
+	public MessageIdSet(int capacity) {
+		int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) * 2;
+		current = new long[tableSize];
+		previous = new long[tableSize];
+	}
+
+	/**
+	 * Adds {@link messageId} to the set.
+	 *
+	 * @param messageId Message-ID header of an email
+	 * @return boolean if {@link messageId} was not already in the set
+	 */
+	public synchronized boolean add(String messageId) {
+		long fingerprint = fingerprint(messageId);
+		if (contains(current, fingerprint) || contains(previous, fingerprint))
+			return false;
+		if (size >= current.length / 2) {
+			long[] cleared = previous;
+			Arrays.fill(cleared, 0);
+			previous = current;
+			current = cleared;
+			size = 0;
+		}
+		int mask = current.length - 1;
+		int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+		while (current[slot] != 0)
+			slot = (slot + 1) & mask;
+		current[slot] = fingerprint;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Checks if {@link messageId} is in the set.
+	 *
+	 * @param messageId Message-ID header of an email
+	 * @return boolean if {@link messageId} was already added
+	 */
+	public synchronized boolean contains(String messageId) {
+		long fingerprint = fingerprint(messageId);
+		return contains(current, fingerprint) || contains(previous, fingerprint);
+	}
+
+	/**
+	 * Checks if {@link table} contains {@link fingerprint}.
+	 *
+	 * @param table       open addressing table to search
+	 * @param fingerprint fingerprint to search for
+	 * @return boolean if {@link table} contains {@link fingerprint}
+	 */
+	private static boolean contains(long[] table, long fingerprint) {
+		int mask = table.length - 1;
+		int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+		while (table[slot] != 0) {
+			if (table[slot] == fingerprint)
+				return true;
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the non-zero 64-bit FNV-1a hash of {@link messageId}.
+	 *
+	 * @param messageId Message-ID to hash
+	 * @return long fingerprint of {@link messageId}
+	 */
+	private static long fingerprint(String messageId) {
+		long hash = 0xcbf29ce484222325L;
+		for (int k = 0; k < messageId.length(); k++) {
+			hash ^= messageId.charAt(k);
+			hash *= 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+}
@@ -0,0 +1,141 @@
+package dev.thatcherclough.climessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class MessageWindow {
+
+	private final AtomicReferenceArray<String> slots;
+	private final AtomicReferenceArray<String> keys;
+	private volatile int newest = 0;
+	private volatile int size = 0;
+	private volatile long version = 0;
+
+	/**
+	 * Constructs a new MessageWindow that holds the newest {@link capacity}
+	 * messages.
+	 * <p>
+	 * Messages are stored in a ring, so adding a message is O(1) and evicts the
+	 * oldest message once the window is full. Writes are serialized, and reads do
+	 * not lock: every write bumps {@link #version} before and after changing the
+	 * ring, and a read retries if the version changed while it was copying.
+	 *
+	 * @param capacity maximum number of messages to hold
+	 */
+	public MessageWindow(int capacity) {
+		slots = new AtomicReferenceArray<String>(capacity);
+		keys = new AtomicReferenceArray<String>(capacity);
+	}
+
+	/**
+	 * Adds {@link message} as the newest message, evicting the oldest message if
+	 * the window is full.
+	 *
+	 * @param message message to add
+	 */
+	public void add(String message) {
+		add(message, null);
+	}
+
+	/**
+	 * Adds {@link message} as the newest message with key {@link key}, so it can
+	 * be replaced with {@link #replace(String, String)} even if other messages
+	 * are equal to it, evicting the oldest message if the window is full.
+	 *
+	 * @param message message to add
+	 * @param key     key of {@link message}, or null
+	 */
+	public synchronized void add(String message, String key) {
+		version++;
+		int index = size == 0 ? newest : (newest + 1) % slots.length();
+		slots.set(index, message);
+		keys.set(index, key);
+		newest = index;
+		if (size < slots.length())
+			size++;
+		version++;
+	}
+
+	/**
+	 * Adds {@link message} as the oldest message if the window is not full.
+	 *
+	 * @param message message to add
+	 * @return boolean if {@link message} was added
+	 */
+	public synchronized boolean addOldest(String message) {
+		if (size == slots.length())
+			return false;
+		version++;
+		int index = Math.floorMod(newest - size, slots.length());
+		slots.set(index, message);
+		keys.set(index, null);
+		size++;
+		version++;
+		return true;
+	}
+
+	/**
+	 * Replaces the message added with key {@link key} with {@link replacement},
+	 * which has no key.
+	 *
+	 * @param key         key of the message to replace
+	 * @param replacement message to replace it with
+	 * @return boolean if a message with {@link key} was found
+	 */
+	public synchronized boolean replace(String key, String replacement) {
+		for (int k = 0; k < size; k++) {
+			int index = Math.floorMod(newest - k, slots.length());
+			if (key.equals(keys.get(index))) {
+				version++;
+				slots.set(index, replacement);
+				keys.set(index, null);
+				version++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets up to {@link count} messages, newest first, skipping the newest
+	 * {@link skip} messages.
+	 *
+	 * @param skip  number of newest messages to skip
+	 * @param count maximum number of messages to get
+	 * @return List of messages, newest first
+	 */
+	public List<String> get(int skip, int count) {
+		while (true) {
+			long before = version;
+			if ((before & 1) == 0) {
+				int currentNewest = newest;
+				int currentSize = size;
+				List<String> ret = new ArrayList<String>(Math.max(0, Math.min(count, currentSize - skip)));
+				for (int k = skip; k < currentSize && k < skip + count; k++)
+					ret.add(slots.get(Math.floorMod(currentNewest - k, slots.length())));
+				if (version == before)
+					return ret;
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Gets the number of messages in the window.
+	 *
+	 * @return int number of messages
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the maximum number of messages in the window.
+	 *
+	 * @return int capacity of the window
+	 */
+	public int capacity() {
+		return slots.length();
+	}
+}
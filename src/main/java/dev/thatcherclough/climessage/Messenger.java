@@ -1,191 +1,509 @@
 package dev.thatcherclough.climessage;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.Reader;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Properties;
-import java.util.Scanner;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.Clip;
-import org.fusesource.jansi.Ansi;
-import org.fusesource.jansi.Ansi.Erase;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.MessagingException;
 
 public class Messenger {
 
-	private String address = null;
-	private String password = null;
-	private String recipient = null;
-	private ArrayList<String> messages = new ArrayList<String>();
-	private PrintWriter out = null;
+	private static final int PAGE_SIZE = 10;
+	private static final int SCROLLBACK = 190;
+	private static final String[] HEADER = { "Press CTRL + C to exit.", "Type a message and press ENTER to send:" };
+	private static final Histogram LAG = Metrics.histogram("message.lag");
+	private static final LongAdder RECEIVED = Metrics.counter("messages.received");
+	private static final long OPEN_RETRY_MILLIS = 1000;
+	private static final long MAX_OPEN_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private volatile AccountRing accounts = null;
+	private volatile String recipient = null;
+	private String number = null;
+	private MessageWindow messages = new MessageWindow(PAGE_SIZE + SCROLLBACK);
+	private Renderer renderer = new Renderer(HEADER, PAGE_SIZE);
+	private ConversationLog log = null;
+	private volatile OutboundQueue outbound = null;
+	private Map<String, String> sending = new HashMap<String, String>();
+	private volatile int scroll = 0;
+	private volatile InboxDispatcher dispatcher = null;
+	private volatile DaemonClient daemon = null;
+	private List<String[]> held = new ArrayList<String[]>();
+	private final AtomicLong keys = new AtomicLong();
+	private boolean connected = false;
+	private long openRetryMillis = OPEN_RETRY_MILLIS;
+	private boolean closed = false;
+	private final CountDownLatch exited = new CountDownLatch(1);
 
 	/**
 	 * Constructs a new Messenger.
 	 * <p>
-	 * Gets address and password of G-Mail account from "userdata/creds.properties".
 	 * Parses {@link filename} to get phone number associated with conversation.
-	 * Uses {@link EmailUtils#getEmail(String)} to get the email address that
-	 * forwards to the phone number. Gets previous conversation messages from file
-	 * with name {@link filename}. Sets {@link out} to the file with name
-	 * {@link filename}.
+	 * Sets {@link log} to the file with name {@link filename} and reads only the
+	 * last page of previous conversation messages from it. Nothing is connected
+	 * until {@link #start()}.
 	 * 
 	 * @param filename file containing previous messages
-	 * @return
 	 * @throws IOException
 	 */
 	public Messenger(String filename) throws IOException {
-		System.out.print("Connecting...");
-		Properties creds = new Properties();
-		creds.load(new FileInputStream("userdata" + File.separator + "creds.properties"));
-		address = creds.getProperty("address");
-		password = creds.getProperty("password");
-		recipient = EmailUtils.getEmail(filename.substring(filename.lastIndexOf("-") + 1, filename.lastIndexOf(".")));
-		Scanner in = new Scanner(new File(filename));
-		while (in.hasNextLine())
-			messages.add(0, in.nextLine());
-		in.close();
-		out = new PrintWriter(new FileOutputStream(new File(filename), true), true);
+		number = filename.substring(filename.lastIndexOf("-") + 1, filename.lastIndexOf("."));
+		log = new ConversationLog(new File(filename));
+		for (String message : log.readOlder(PAGE_SIZE))
+			messages.addOldest(message);
 	}
 
 	/**
 	 * Starts messenger.
 	 * <p>
 	 * Uses {@link RawConsole#enable()} to enable "raw" mode on the current unix
-	 * console. Displays previous messages. Starts a new thread {@link getInput} to
-	 * constantly get keyboard input for messages to send. Starts a new thread
-	 * {@link receiveMessages} to constantly get messages that have been sent to
-	 * {@link #address} from {@link #recipient}.
+	 * console once for the whole conversation. Displays previous messages with
+	 * {@link #renderer}, which owns all console output until the messenger is
+	 * closed. Runs a task on {@link Workers#input()} that reads messages to send
+	 * with a {@link LineEditor}, passes PAGE UP and PAGE DOWN presses on to
+	 * scroll through previous messages, and runs {@link #close()} when CTRL + C
+	 * is pressed. Typing "/stats" shows a report of the {@link Metrics}, which
+	 * are started here, instead of sending it. Then connects in the background
+	 * with {@link #connect()}, so the conversation is drawn without waiting for
+	 * the network.
 	 * 
 	 * @throws InterruptedException
 	 * @throws IOException
 	 */
 	public void start() throws InterruptedException, IOException {
+		Metrics.start();
+		Notifier.preload();
 		RawConsole.enable();
-		System.out.print(Ansi.ansi().eraseScreen().cursor(0, 0));
-		RawConsole.println("Press CTRL + C to exit.");
-		RawConsole.println("Type a message and press ENTER to send:\n");
 		dispMessages();
-		Thread getInput = new Thread() {
-			public void run() {
-				Reader reader = System.console().reader();
-				while (true) {
-					try {
-						System.out.print(">");
-						String message = RawConsole.getInput(reader);
-						String timestamp = "["
-								+ DateTimeFormatter.ofPattern("MM/dd/YYYY HH:mm:ss").format(LocalDateTime.now()) + "]";
-						String finalMessage = message + "  -  [sent] " + timestamp;
-						messages.add(0, finalMessage);
-						dispMessages();
-						out.println(finalMessage);
-						sendMessage(message);
-						System.out.print(Ansi.ansi().eraseLine(Erase.BACKWARD).cursorToColumn(0));
-					} catch (Exception e) {
-						error(e);
+		Workers.input().execute(() -> {
+			LineEditor editor = new LineEditor(System.in, direction -> scroll(direction), renderer::setInput);
+			while (true) {
+				try {
+					String message = editor.readLine();
+					if (message == null) {
+						close();
+						return;
 					}
+					renderer.setInput("", 0);
+					if (message.equals("/stats"))
+						renderer.setMessages(Metrics.report());
+					else
+						sendMessage(message);
+				} catch (Exception e) {
+					error(e);
+					return;
 				}
 			}
-		};
+		});
+		connect();
+	}
 
-		Thread receiveMessages = new Thread() {
-			public void run() {
-				String number = recipient.substring(0, recipient.indexOf("@"));
-				while (true) {
-					try {
-						String message = EmailUtils.recEmail(address, password, number);
-						if (message != null) {
-							String timestamp = "["
-									+ DateTimeFormatter.ofPattern("MM/dd/YYYY HH:mm:ss").format(LocalDateTime.now())
-									+ "]";
-							if (message.contains("\r"))
-								message = message.substring(0, message.indexOf("\r"));
-							if (message.contains("\n"))
-								message = message.substring(0, message.indexOf("\n"));
-							String finalMessage = message + "  -  [received] " + timestamp;
-							messages.add(0, finalMessage);
-							dispMessages();
-							out.println(finalMessage);
-							playNotificationSound();
-						}
-						Thread.sleep(3000);
-					} catch (Exception e) {
-						error(e);
-					}
-				}
+	/**
+	 * Connects the conversation in the background.
+	 * <p>
+	 * If a {@link Daemon} is running, attaches to it with
+	 * {@link DaemonClient#connect()} and subscribes to the conversation, so it
+	 * opens without connecting to G-Mail. Otherwise, reads the accounts in
+	 * "userdata/creds.properties" with {@link AccountRing#load()} and, in
+	 * parallel, uses {@link EmailUtils#getEmail(String)} to get the email
+	 * address that forwards to {@link #number}, warms their {@link SmtpPool}s,
+	 * gets the {@link OutboundQueue}, which resends messages left pending by a
+	 * previous run, and registers with the {@link InboxDispatcher}, which
+	 * connects to the inboxes. The steps run on {@link Workers#lookup()}, and
+	 * steps that already succeeded are skipped when connecting is retried by
+	 * {@link #ready(Throwable)}. The progress is shown in the status line, and
+	 * messages typed before sending is ready are held and sent with
+	 * {@link #ready(Throwable)}.
+	 */
+	private void connect() {
+		ExecutorService open = Workers.lookup();
+		renderer.setStatus("Connecting...");
+		CompletableFuture.supplyAsync(DaemonClient::connect, open).thenCompose(client -> {
+			if (client != null)
+				return CompletableFuture.runAsync(unchecked(() -> attach(client)), open);
+			if (accounts == null)
+				unchecked(() -> accounts = AccountRing.load()).run();
+			CompletableFuture<Void> gateway = recipient != null ? CompletableFuture.completedFuture(null)
+					: CompletableFuture.runAsync(unchecked(() -> {
+						recipient = EmailUtils.getEmail(number);
+						if (recipient == null)
+							throw new IOException("Carrier of " + number + " not found");
+					}), open);
+			CompletableFuture<Void> smtp = CompletableFuture.runAsync(unchecked(() -> accounts.warm()), open);
+			CompletableFuture<Void> queue = outbound != null ? CompletableFuture.completedFuture(null)
+					: CompletableFuture.runAsync(unchecked(() -> {
+						OutboundQueue opened = OutboundQueue.get(accounts);
+						opened.setErrorHandler(e -> renderer.setStatus("Could not send: " + e.getMessage()));
+						opened.setListener(log.getFile(),
+								message -> sendComplete(message.getId(), message.getLine()));
+						outbound = opened;
+					}), open);
+			if (dispatcher == null) {
+				dispatcher = InboxDispatcher.get(accounts);
+				dispatcher.setErrorHandler(e -> renderer.setStatus("Could not receive: " + e.getMessage()));
+				dispatcher.register(number, this::receiveMessage);
 			}
-		};
-		getInput.start();
-		receiveMessages.start();
+			Map<String, CompletableFuture<Void>> steps = new LinkedHashMap<String, CompletableFuture<Void>>();
+			steps.put("carrier", gateway);
+			steps.put("SMTP", smtp);
+			steps.put("outbox", queue);
+			steps.put("IMAP", dispatcher.getSynced());
+			for (CompletableFuture<Void> step : steps.values())
+				step.whenComplete((result, e) -> showStatus(steps));
+			return CompletableFuture.allOf(gateway, smtp, queue);
+		}).whenComplete((result, e) -> ready(e));
+	}
+
+	/**
+	 * Subscribes to the conversation with {@link client}, which is connected to a
+	 * running {@link Daemon}.
+	 * 
+	 * @param client client connected to the daemon
+	 * @throws IOException
+	 */
+	private void attach(DaemonClient client) throws IOException {
+		daemon = client;
+		daemon.subscribe(number, line -> showReceived(Collections.singletonList(line)), this::sendComplete,
+				() -> error(new IOException("Lost connection to daemon")));
+		renderer.setStatus("");
 	}
 
 	/**
-	 * Saves cursor position, moves cursor down 2 lines, displays the first 5
-	 * elements of {@ink #messages}, and restores cursor position.
+	 * Shows which of {@link steps} are still connecting in the status line, or
+	 * clears it once all are done. Does nothing once a step failed, so the error
+	 * shown by {@link #ready(Throwable)} stays.
+	 * 
+	 * @param steps steps of connecting by name
 	 */
-	private void dispMessages() {
-		System.out.print("\0337"); // saves cursor position
-		System.out.print(Ansi.ansi().cursorDown(2));
-		for (int k = 0; (k < messages.size() && k < 10); k++)
-			RawConsole.println(Ansi.ansi().eraseLine() + messages.get(k));
-		System.out.print("\0338"); // restores cursor position
+	private void showStatus(Map<String, CompletableFuture<Void>> steps) {
+		List<String> pending = new ArrayList<String>();
+		for (Map.Entry<String, CompletableFuture<Void>> step : steps.entrySet()) {
+			if (step.getValue().isCompletedExceptionally())
+				return;
+			if (!step.getValue().isDone())
+				pending.add(step.getKey());
+		}
+		renderer.setStatus(pending.isEmpty() ? "" : "Connecting to " + String.join(", ", pending) + "...");
 	}
 
 	/**
-	 * Creates and starts new thread {@link send} to send {@link message} to
-	 * {@link #recipient}.
+	 * Marks sending as ready and sends the messages held in {@link #held}.
+	 * <p>
+	 * Sending is ready once attached to a {@link Daemon}, or once the
+	 * {@link OutboundQueue} was opened and the email address of {@link #number}
+	 * is known, even if {@link failure} came from another step, as the queue
+	 * retries sending. Otherwise {@link #connect()} is retried in the background
+	 * with exponential backoff of up to {@link #MAX_OPEN_RETRY_MILLIS}
+	 * milliseconds, and messages stay held. Any error is shown in the status
+	 * line.
 	 * 
-	 * @param message message to send
+	 * @param failure why connecting failed, or null if it succeeded
 	 */
-	private void sendMessage(String message) {
-		Thread send = new Thread() {
-			public void run() {
-				try {
-					Thread.sleep(3000);
-					EmailUtils.sendEmail(address, password, recipient, message);
-				} catch (Exception e) {
-					error(e);
+	private void ready(Throwable failure) {
+		boolean usable = daemon != null || (outbound != null && recipient != null);
+		if (failure != null) {
+			Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+					? failure.getCause()
+					: failure;
+			if (usable)
+				renderer.setStatus("Could not connect: " + cause.getMessage());
+			else {
+				long delay;
+				synchronized (this) {
+					if (closed)
+						return;
+					delay = openRetryMillis;
+					openRetryMillis = Math.min(MAX_OPEN_RETRY_MILLIS, openRetryMillis * 2);
 				}
+				renderer.setStatus("Could not connect: " + cause.getMessage() + " (retrying in "
+						+ TimeUnit.MILLISECONDS.toSeconds(delay) + " s)");
+				Workers.scheduler().schedule(() -> {
+					synchronized (this) {
+						if (closed)
+							return;
+					}
+					connect();
+				}, delay, TimeUnit.MILLISECONDS);
 			}
-		};
-		send.start();
+		}
+		if (!usable)
+			return;
+		synchronized (sending) {
+			connected = true;
+			try {
+				for (String[] message : held)
+					send(message[0], message[1]);
+			} catch (IOException e) {
+				error(e);
+			}
+			held.clear();
+		}
 	}
 
 	/**
-	 * When executed from a jar file, plays "BOOT-INF/classes/notification.wav"
-	 * which is a copy of "src/main/resources/notification.wav".
+	 * Reads the last page of messages of conversation {@link filename} and draws
+	 * it once to {@link out} with a {@link Renderer}, like {@link #start()} does
+	 * first. Used to measure how long the first render takes.
+	 * 
+	 * @param filename file containing previous messages, or null for an empty
+	 *                 conversation
+	 * @param out      stream to draw to
+	 * @throws IOException
+	 * @throws InterruptedException
 	 */
-	private void playNotificationSound() {
-		try {
-			AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(
-					new BufferedInputStream(getClass().getResourceAsStream("/BOOT-INF/classes/notification.wav")));
-			Clip clip = AudioSystem.getClip();
-			clip.open(audioInputStream);
-			clip.start();
-		} catch (Exception e) {
-		}
+	public static void drawHistory(String filename, PrintStream out) throws IOException, InterruptedException {
+		MessageWindow page = new MessageWindow(PAGE_SIZE);
+		if (filename != null)
+			for (String message : new ConversationLog(new File(filename)).readOlder(PAGE_SIZE))
+				page.addOldest(message);
+		Renderer renderer = new Renderer(HEADER, PAGE_SIZE, out);
+		renderer.setMessages(page.get(0, PAGE_SIZE));
+		renderer.flush();
 	}
 
 	/**
-	 * Disables "raw" mode on the current unix console, clears console, and prints
-	 * stack trace of Exception {@link e}
+	 * Waits until the messenger was closed with {@link #close()}.
 	 * 
-	 * @param e Exception to print stack trace of
+	 * @throws InterruptedException
+	 */
+	public void awaitExit() throws InterruptedException {
+		exited.await();
+	}
+
+	/**
+	 * Closes the messenger.
+	 * <p>
+	 * Stops receiving and displaying messages, disables "raw" mode on the current
+	 * unix console, and clears console. Waits up to setting
+	 * "shutdown.drain.seconds" seconds for pending messages to be sent; messages
+	 * still pending stay in the journal of {@link #outbound} and are sent on the
+	 * next run. Messages still held because connecting never succeeded are
+	 * logged as failed. If attached to a {@link Daemon}, only disconnects from
+	 * it, as the daemon keeps sending and receiving. Then shuts down
+	 * {@link Workers}, closes the SMTP connections, and saves the
+	 * {@link SearchIndex}.
 	 */
-	private static void error(Exception e) {
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		DaemonClient daemon = this.daemon;
+		InboxDispatcher dispatcher = this.dispatcher;
+		OutboundQueue outbound = this.outbound;
+		if (daemon != null)
+			daemon.close();
+		if (dispatcher != null)
+			dispatcher.unregister(number);
+		if (outbound != null)
+			outbound.setListener(log.getFile(), null);
+		synchronized (sending) {
+			try {
+				for (String[] message : held)
+					log.append(ConversationLog.format(message[0], "failed"));
+			} catch (IOException e) {
+			}
+			held.clear();
+		}
+		renderer.close();
+		Notifier.close();
 		try {
 			RawConsole.disable();
-			System.out.print(Ansi.ansi().eraseScreen().cursor(0, 0));
-			e.printStackTrace();
-		} catch (Exception e1) {
+		} catch (IOException | InterruptedException e) {
+		}
+		try {
+			long deadline = System.currentTimeMillis()
+					+ TimeUnit.SECONDS.toMillis(Settings.getLong("shutdown.drain.seconds", 10));
+			if (outbound != null) {
+				if (outbound.getPending() > 0)
+					System.out.println("Sending " + outbound.getPending() + " pending messages...");
+				while (outbound.getPending() > 0 && System.currentTimeMillis() < deadline)
+					Thread.sleep(100);
+			}
+			if (dispatcher != null)
+				dispatcher.stop();
+			SearchIndex.flush();
+			Workers.shutdown(Math.max(0, deadline - System.currentTimeMillis()));
+		} catch (InterruptedException e) {
 		} finally {
-			System.exit(0);
+			SmtpPool.closeAll();
+			exited.countDown();
 		}
 	}
+
+	/**
+	 * Logs and displays the body of received email {@link email} and a reference
+	 * to each of its attachments with {@link #showReceived(List)}.
+	 * <p>
+	 * The time from the Date header of {@link email} until it is displayed is
+	 * recorded in histogram "message.lag".
+	 * 
+	 * @param email received email
+	 * @throws IOException if the email could not be logged, so it is received
+	 *                     again
+	 */
+	private void receiveMessage(ReceivedEmail email) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (String message : email.getMessages())
+			lines.add(ConversationLog.format(message, "received"));
+		for (String line : lines)
+			log.append(line);
+		showReceived(lines);
+		if (email.getSentDate() != null)
+			LAG.record(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - email.getSentDate().getTime()));
+	}
+
+	/**
+	 * Displays received ".convo" lines {@link lines} and plays the notification
+	 * sound with {@link Notifier#play()}.
+	 * 
+	 * @param lines lines of received messages
+	 */
+	private void showReceived(List<String> lines) {
+		for (String line : lines)
+			messages.add(line);
+		scroll = 0;
+		dispMessages();
+		RECEIVED.increment();
+		Notifier.play();
+	}
+
+	/**
+	 * Scrolls the displayed messages one page in {@link direction}.
+	 * <p>
+	 * Older pages are read from {@link #log} only when they are scrolled to, until
+	 * {@link #messages} is full.
+	 * 
+	 * @param direction 1 to scroll to older messages, -1 to scroll to newer
+	 *                  messages
+	 */
+	private void scroll(int direction) {
+		try {
+			int target = Math.max(0, scroll + direction * PAGE_SIZE);
+			int missing = Math.min(target + PAGE_SIZE, messages.capacity()) - messages.size();
+			if (missing > 0 && log.hasOlder())
+				for (String message : log.readOlder(missing))
+					messages.addOldest(message);
+			if (target < messages.size() || target == 0) {
+				scroll = target;
+				dispMessages();
+			}
+		} catch (IOException e) {
+			error(e);
+		}
+	}
+
+	/**
+	 * Displays a page of {@link #messages} starting at {@link #scroll}.
+	 * <p>
+	 * The page is handed to {@link #renderer}, which draws only the lines that
+	 * changed and draws a burst of messages in a single frame.
+	 */
+	private void dispMessages() {
+		renderer.setMessages(messages.get(scroll, PAGE_SIZE));
+	}
+
+	/**
+	 * Displays {@link message} as sending and durably enqueues it in
+	 * {@link #outbound} to be sent to {@link #recipient}, or in the queue of
+	 * {@link #daemon} if attached. Until sending is ready, {@link message} is
+	 * held in {@link #held}.
+	 * <p>
+	 * The sending line is added to {@link #messages} with a key of its own, so it
+	 * is replaced by the outcome of this message even if an equal message is
+	 * sending. The message is logged once its outcome is known.
+	 * 
+	 * @param message message to send
+	 * @throws IOException
+	 */
+	private void sendMessage(String message) throws IOException {
+		String key = Long.toString(keys.incrementAndGet());
+		messages.add(ConversationLog.format(message, "sending"), key);
+		scroll = 0;
+		dispMessages();
+		synchronized (sending) {
+			if (connected)
+				send(message, key);
+			else
+				held.add(new String[] { message, key });
+		}
+	}
+
+	/**
+	 * Enqueues {@link message}, whose sending line has key {@link key}, once
+	 * sending is ready, with the {@link Daemon} if attached to one or else with
+	 * {@link #outbound}.
+	 * 
+	 * @param message message to send
+	 * @param key     key of the displayed sending line of {@link message}
+	 * @throws IOException
+	 */
+	private void send(String message, String key) throws IOException {
+		sending.put(daemon != null ? daemon.send(number, message)
+				: outbound.enqueue(log.getFile(), recipient, message).getId(), key);
+	}
+
+	/**
+	 * Replaces the displayed sending line of the message with id {@link id} with
+	 * line {@link logged} that was logged once its outcome was known.
+	 * 
+	 * @param id     id of the message that was sent or failed
+	 * @param logged logged line of the message
+	 */
+	private void sendComplete(String id, String logged) {
+		String key;
+		synchronized (sending) {
+			key = sending.remove(id);
+		}
+		if (key == null || !messages.replace(key, logged))
+			messages.add(logged);
+		dispMessages();
+	}
+
+	/**
+	 * Wraps {@link step} in a {@link Runnable} that rethrows its exceptions as
+	 * {@link CompletionException}, so it can run in a {@link CompletableFuture}.
+	 * 
+	 * @param step step that may throw
+	 * @return Runnable running {@link step}
+	 */
+	private static Runnable unchecked(Step step) {
+		return () -> {
+			try {
+				step.run();
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		};
+	}
+
+	/**
+	 * A step of connecting that may throw.
+	 */
+	private interface Step {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Closes the messenger with {@link #close()} and prints stack trace of
+	 * Exception {@link e}
+	 * 
+	 * @param e Exception to print stack trace of
+	 */
+	private void error(Exception e) {
+		close();
+		e.printStackTrace();
+	}
 }
\ No newline at end of file
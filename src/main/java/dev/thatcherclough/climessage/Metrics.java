@@ -0,0 +1,192 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMXBean {
+
+	private static final Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private static final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+	private static boolean started = false;
+
+	/**
+	 * Gets the histogram named {@link name}, creating it if it does not exist yet.
+	 * <p>
+	 * Callers should keep the histogram in a field rather than look it up for
+	 * every duration.
+	 *
+	 * @param name name of the histogram
+	 * @return Histogram named {@link name}
+	 */
+	public static Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, key -> new Histogram());
+	}
+
+	/**
+	 * Gets the counter named {@link name}, creating it if it does not exist yet.
+	 *
+	 * @param name name of the counter
+	 * @return LongAdder counter named {@link name}
+	 */
+	public static LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, key -> new LongAdder());
+	}
+
+	/**
+	 * Sets gauge {@link name} to read its value from {@link value} whenever the
+	 * metrics are read.
+	 *
+	 * @param name  name of the gauge
+	 * @param value supplier of the value of the gauge
+	 */
+	public static void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Starts exposing the metrics if they are not exposed yet.
+	 * <p>
+	 * If setting "metrics.jmx" is true, the metrics are registered as MXBean
+	 * "dev.thatcherclough.climessage:type=Metrics" in the background, so startup
+	 * does not wait for JMX. If setting "metrics.snapshot.seconds" is above 0, the
+	 * metrics are written to "userdata/metrics.properties" that often. Metrics
+	 * are only computed when they are read.
+	 */
+	public static synchronized void start() {
+		if (started)
+			return;
+		started = true;
+		if (Settings.getBoolean("metrics.jmx", true)) {
+			Workers.scheduler().execute(() -> {
+				try {
+					ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(),
+							new ObjectName("dev.thatcherclough.climessage:type=Metrics"));
+				} catch (JMException e) {
+				}
+			});
+		}
+		long seconds = Settings.getLong("metrics.snapshot.seconds", 0);
+		if (seconds > 0)
+			Workers.scheduler().scheduleWithFixedDelay(Metrics::writeSnapshot, seconds, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Gets a short report of the metrics, one line per histogram that recorded
+	 * anything, followed by a line of counters and a line of gauges.
+	 *
+	 * @return List of lines of the report
+	 */
+	public static List<String> report() {
+		List<String> ret = new ArrayList<String>();
+		Metrics metrics = new Metrics();
+		for (Map.Entry<String, Histogram.Snapshot> entry : metrics.getHistograms().entrySet()) {
+			Histogram.Snapshot snapshot = entry.getValue();
+			if (snapshot.getCount() > 0)
+				ret.add(String.format("%-16s n=%-6d p50=%-8s p99=%-8s max=%s", entry.getKey(), snapshot.getCount(),
+						duration(snapshot.getP50Micros()), duration(snapshot.getP99Micros()),
+						duration(snapshot.getMaxMicros())));
+		}
+		ret.add(join(metrics.getCounters()));
+		ret.add(join(metrics.getGauges()));
+		return ret;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		Map<String, Long> ret = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet())
+			ret.put(entry.getKey(), entry.getValue().sum());
+		return ret;
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> ret = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongSupplier> entry : gauges.entrySet())
+			ret.put(entry.getKey(), entry.getValue().getAsLong());
+		return ret;
+	}
+
+	@Override
+	public Map<String, Histogram.Snapshot> getHistograms() {
+		Map<String, Histogram.Snapshot> ret = new TreeMap<String, Histogram.Snapshot>();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+			ret.put(entry.getKey(), entry.getValue().snapshot());
+		return ret;
+	}
+
+	/**
+	 * Writes every metric to "userdata/metrics.properties", replacing the file
+	 * atomically so readers never see a partial snapshot.
+	 */
+	private static void writeSnapshot() {
+		Metrics metrics = new Metrics();
+		Properties properties = new Properties();
+		for (Map.Entry<String, Long> entry : metrics.getCounters().entrySet())
+			properties.setProperty("counter." + entry.getKey(), Long.toString(entry.getValue()));
+		for (Map.Entry<String, Long> entry : metrics.getGauges().entrySet())
+			properties.setProperty("gauge." + entry.getKey(), Long.toString(entry.getValue()));
+		for (Map.Entry<String, Histogram.Snapshot> entry : metrics.getHistograms().entrySet()) {
+			Histogram.Snapshot snapshot = entry.getValue();
+			String prefix = "histogram." + entry.getKey() + ".";
+			properties.setProperty(prefix + "count", Long.toString(snapshot.getCount()));
+			properties.setProperty(prefix + "mean.micros", Long.toString(snapshot.getMeanMicros()));
+			properties.setProperty(prefix + "p50.micros", Long.toString(snapshot.getP50Micros()));
+			properties.setProperty(prefix + "p99.micros", Long.toString(snapshot.getP99Micros()));
+			properties.setProperty(prefix + "max.micros", Long.toString(snapshot.getMaxMicros()));
+		}
+		File file = new File("userdata" + File.separator + "metrics.properties");
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+				properties.store(out, "CLImessage metrics");
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Formats {@link micros} microseconds for the report.
+	 *
+	 * @param micros duration in microseconds
+	 * @return String duration in microseconds, milliseconds, or seconds
+	 */
+	private static String duration(long micros) {
+		if (micros < 1000)
+			return micros + "us";
+		else if (micros < 1000000)
+			return String.format("%.1fms", micros / 1000.0);
+		return String.format("%.1fs", micros / 1000000.0);
+	}
+
+	/**
+	 * Joins the entries of {@link values} as "name=value" pairs.
+	 *
+	 * @param values values by name
+	 * @return String pairs separated by spaces
+	 */
+	private static String join(Map<String, Long> values) {
+		StringBuilder ret = new StringBuilder();
+		for (Map.Entry<String, Long> entry : values.entrySet())
+			ret.append(ret.length() == 0 ? "" : " ").append(entry.getKey()).append('=').append(entry.getValue());
+		return ret.toString();
+	}
+}
@@ -0,0 +1,27 @@
+package dev.thatcherclough.climessage;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+
+	/**
+	 * Gets the value of every counter.
+	 *
+	 * @return Map of counter names to values
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * Gets the current value of every gauge.
+	 *
+	 * @return Map of gauge names to values
+	 */
+	Map<String, Long> getGauges();
+
+	/**
+	 * Gets a snapshot of every histogram.
+	 *
+	 * @return Map of histogram names to snapshots
+	 */
+	Map<String, Histogram.Snapshot> getHistograms();
+}
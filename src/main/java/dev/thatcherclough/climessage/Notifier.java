@@ -0,0 +1,102 @@
+package dev.thatcherclough.climessage;
+
+import java.io.BufferedInputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Clip;
+
+public class Notifier {
+
+	private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(Settings.getLong("notification.window.millis", 1000));
+	private static final AtomicBoolean pending = new AtomicBoolean(false);
+	private static volatile boolean unavailable = !Settings.getBoolean("notification.sound", true);
+	private static volatile long lastPlayed = System.nanoTime() - WINDOW_NANOS;
+	private static boolean loaded = false;
+	private static Clip clip = null;
+
+	/**
+	 * Decodes "notification.wav" from the class path, which is a copy of
+	 * "src/main/resources/notification.wav", into a {@link Clip} on
+	 * {@link Workers#scheduler()}, so the first notification does not have to.
+	 */
+	public static void preload() {
+		if (unavailable)
+			return;
+		try {
+			Workers.scheduler().execute(Notifier::load);
+		} catch (RejectedExecutionException e) {
+		}
+	}
+
+	/**
+	 * Plays the notification sound on {@link Workers#scheduler()}.
+	 * <p>
+	 * The sound is played at most once every setting
+	 * "notification.window.millis" (1000) milliseconds, so a burst of received
+	 * messages plays it once right away and once more at the end of the window.
+	 * The same {@link Clip} is rewound and played every time. Returns at once if
+	 * setting "notification.sound" is false or there is no audio device.
+	 */
+	public static void play() {
+		if (unavailable || !pending.compareAndSet(false, true))
+			return;
+		long delay = Math.max(0, lastPlayed + WINDOW_NANOS - System.nanoTime());
+		try {
+			Workers.scheduler().schedule(Notifier::playNow, delay, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			pending.set(false);
+		}
+	}
+
+	/**
+	 * Closes the {@link Clip} and stops playing notifications.
+	 */
+	public static void close() {
+		unavailable = true;
+		try {
+			Workers.scheduler().execute(() -> {
+				if (clip != null)
+					clip.close();
+				clip = null;
+			});
+		} catch (RejectedExecutionException e) {
+		}
+	}
+
+	/**
+	 * Decodes the notification sound into {@link #clip} if it was not tried yet.
+	 * If there is no audio device, notifications are disabled. Only runs on
+	 * {@link Workers#scheduler()}.
+	 */
+	private static void load() {
+		if (loaded)
+			return;
+		loaded = true;
+		try (AudioInputStream in = AudioSystem
+				.getAudioInputStream(new BufferedInputStream(Notifier.class.getResourceAsStream("/notification.wav")))) {
+			Clip opened = AudioSystem.getClip();
+			opened.open(in);
+			clip = opened;
+		} catch (Exception | LinkageError e) {
+			unavailable = true;
+		}
+	}
+
+	/**
+	 * Rewinds and plays {@link #clip}. Only runs on {@link Workers#scheduler()}.
+	 */
+	private static void playNow() {
+		pending.set(false);
+		load();
+		if (clip == null || unavailable)
+			return;
+		lastPlayed = System.nanoTime();
+		clip.stop();
+		clip.setFramePosition(0);
+		clip.start();
+	}
+}
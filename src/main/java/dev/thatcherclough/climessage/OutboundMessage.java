@@ -0,0 +1,122 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+
+public class OutboundMessage {
+
+	private final String id;
+	private final File log;
+	private final String recipient;
+	private final String body;
+	private final long enqueued = System.nanoTime();
+	private int attempts = 0;
+	private String status = "sending";
+	private String line = null;
+
+	/**
+	 * Constructs a new OutboundMessage.
+	 *
+	 * @param id        unique id of the message in the journal
+	 * @param log       ".convo" file to log the outcome to
+	 * @param recipient email address to send the message to
+	 * @param body      body of the message
+	 */
+	public OutboundMessage(String id, File log, String recipient, String body) {
+		this.id = id;
+		this.log = log;
+		this.recipient = recipient;
+		this.body = body;
+	}
+
+	/**
+	 * Gets the unique id of the message in the journal.
+	 *
+	 * @return String id of the message
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the ".convo" file the outcome is logged to.
+	 *
+	 * @return File of the conversation log
+	 */
+	public File getLog() {
+		return log;
+	}
+
+	/**
+	 * Gets the email address the message is sent to.
+	 *
+	 * @return String email address of the recipient
+	 */
+	public String getRecipient() {
+		return recipient;
+	}
+
+	/**
+	 * Gets when the message was enqueued.
+	 *
+	 * @return long {@link System#nanoTime()} when the message was enqueued
+	 */
+	public long getEnqueuedNanos() {
+		return enqueued;
+	}
+
+	/**
+	 * Gets the body of the message.
+	 *
+	 * @return String body of the message
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * Gets the number of times sending was attempted.
+	 *
+	 * @return int number of attempts
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * Increments the number of times sending was attempted.
+	 *
+	 * @return int number of attempts including this one
+	 */
+	public int attempt() {
+		return ++attempts;
+	}
+
+	/**
+	 * Gets the status of the message: "sending", "sent" or "failed".
+	 *
+	 * @return String status of the message
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * Gets the line logged to {@link #getLog()} once the outcome was known.
+	 *
+	 * @return String logged line, or null if the message is still sending
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	 * Sets the outcome of the message.
+	 *
+	 * @param status "sent" or "failed"
+	 * @param line   line logged to {@link #getLog()}
+	 */
+	public void setOutcome(String status, String line) {
+		this.status = status;
+		this.line = line;
+	}
+}
@@ -0,0 +1,456 @@
+package dev.thatcherclough.climessage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.mail.MessagingException;
+
+public class OutboundQueue {
+
+	private static final long BACKOFF_MILLIS = 1000;
+	private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+	private static final Map<String, OutboundQueue> queues = new ConcurrentHashMap<String, OutboundQueue>();
+	private static final Histogram LATENCY = Metrics.histogram("send.latency");
+	private static final LongAdder SENT = Metrics.counter("messages.sent");
+	private static final LongAdder FAILED = Metrics.counter("messages.failed");
+	private static final LongAdder RETRIES = Metrics.counter("send.retries");
+	private static final LongAdder EMAILS = Metrics.counter("send.emails");
+	private static final LongAdder ERRORS = Metrics.counter("outbound.errors");
+
+	static {
+		Metrics.gauge("outbound.pending", OutboundQueue::getTotalPending);
+	}
+
+	private final AccountRing accounts;
+	private final File journal;
+	private final int maxAttempts = (int) Settings.getLong("send.max.attempts", 8);
+	private final long coalesceMillis = Settings.getLong("send.coalesce.millis", 200);
+	private final Map<String, Deque<OutboundMessage>> lanes = new HashMap<String, Deque<OutboundMessage>>();
+	private final Map<String, Batch> batches = new HashMap<String, Batch>();
+	private final Map<String, Consumer<OutboundMessage>> listeners = new ConcurrentHashMap<String, Consumer<OutboundMessage>>();
+	private volatile Consumer<Exception> errorHandler = null;
+	private int pending = 0;
+
+	/**
+	 * Constructs a new OutboundQueue for the accounts of {@link accounts} with
+	 * its journal in "userdata/{@link address}.outbox".
+	 *
+	 * @param address  address of the first account of {@link accounts}
+	 * @param accounts accounts to send email from
+	 */
+	private OutboundQueue(String address, AccountRing accounts) {
+		this.accounts = accounts;
+		this.journal = new File("userdata" + File.separator + address + ".outbox");
+	}
+
+	/**
+	 * Gets the OutboundQueue of the accounts of {@link accounts}, creating it and
+	 * replaying its journal if it does not exist yet.
+	 *
+	 * @param accounts accounts to send email from
+	 * @return OutboundQueue of {@link accounts}
+	 * @throws IOException
+	 */
+	public static OutboundQueue get(AccountRing accounts) throws IOException {
+		String address = accounts.getAccounts().get(0).getAddress();
+		OutboundQueue queue = queues.get(address);
+		if (queue != null)
+			return queue;
+		synchronized (queues) {
+			queue = queues.get(address);
+			if (queue == null) {
+				queue = new OutboundQueue(address, accounts);
+				queue.replay();
+				queues.put(address, queue);
+			}
+			return queue;
+		}
+	}
+
+	/**
+	 * Sets {@link listener} to be notified when the outcome of a message logged to
+	 * {@link log} is known.
+	 *
+	 * @param log      ".convo" file of the conversation
+	 * @param listener listener of outcomes, or null to remove the listener
+	 */
+	public void setListener(File log, Consumer<OutboundMessage> listener) {
+		if (listener == null)
+			listeners.remove(log.getAbsolutePath());
+		else
+			listeners.put(log.getAbsolutePath(), listener);
+	}
+
+	/**
+	 * Durably enqueues {@link body} to be sent to {@link recipient}.
+	 * <p>
+	 * The message is written to the journal and forced to disk before this
+	 * returns. Messages to the same recipient are sent in order. Messages to the
+	 * same recipient that are enqueued within setting "send.coalesce.millis" of
+	 * each other, or while an earlier one is being sent, are sent together as one
+	 * email, split into segments by {@link SmsSegmenter} if too long for one
+	 * text. A message that fails with a transient error is retried with
+	 * exponential backoff and jitter, up to setting "send.max.attempts" attempts.
+	 * Only once the outcome is known is each message logged to {@link log} as
+	 * "sent" or "failed", once.
+	 *
+	 * @param log       ".convo" file to log the outcome to
+	 * @param recipient email address to send the message to
+	 * @param body      body of the message
+	 * @return OutboundMessage that was enqueued
+	 * @throws IOException
+	 */
+	public OutboundMessage enqueue(File log, String recipient, String body) throws IOException {
+		OutboundMessage message = new OutboundMessage(UUID.randomUUID().toString(), log, recipient, body);
+		synchronized (this) {
+			write("Q " + message.getId() + " " + encode(log.getPath()) + " " + encode(recipient) + " "
+					+ encode(body));
+			submit(message);
+		}
+		return message;
+	}
+
+	/**
+	 * Gets the number of messages that are enqueued but not sent or failed yet.
+	 *
+	 * @return int number of pending messages
+	 */
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	/**
+	 * Gets the number of messages of every account that are enqueued but not sent
+	 * or failed yet.
+	 *
+	 * @return long number of pending messages
+	 */
+	public static long getTotalPending() {
+		long ret = 0;
+		for (OutboundQueue queue : queues.values())
+			ret += queue.getPending();
+		return ret;
+	}
+
+	/**
+	 * Adds {@link message} to the lane of its recipient and starts draining the
+	 * lane after setting "send.coalesce.millis" (200) milliseconds if it was
+	 * empty, so messages typed in quick succession are sent together.
+	 *
+	 * @param message message to add
+	 */
+	private synchronized void submit(OutboundMessage message) {
+		pending++;
+		Deque<OutboundMessage> lane = lanes.computeIfAbsent(message.getRecipient(),
+				key -> new ArrayDeque<OutboundMessage>());
+		lane.addLast(message);
+		if (lane.size() == 1) {
+			if (coalesceMillis > 0)
+				Workers.scheduler().schedule(() -> Workers.send().execute(() -> drain(message.getRecipient())),
+						coalesceMillis, TimeUnit.MILLISECONDS);
+			else
+				Workers.send().execute(() -> drain(message.getRecipient()));
+		}
+	}
+
+	/**
+	 * Sends the messages of the lane of {@link recipient} in order until the lane
+	 * is empty or a batch has to wait to be retried.
+	 * <p>
+	 * All messages in the lane are taken as one {@link Batch} and sent with
+	 * {@link #send(String, Batch)}. Unless the batch is retried, it is removed
+	 * from the lane however sending it ended, so one batch cannot hold up the
+	 * messages after it.
+	 *
+	 * @param recipient email address whose lane to drain
+	 */
+	private void drain(String recipient) {
+		boolean more = true;
+		while (more) {
+			Batch batch;
+			synchronized (this) {
+				batch = batches.get(recipient);
+				if (batch == null) {
+					batch = new Batch(new ArrayList<OutboundMessage>(lanes.get(recipient)));
+					batches.put(recipient, batch);
+				}
+			}
+			boolean retrying = false;
+			try {
+				retrying = send(recipient, batch);
+			} finally {
+				more = !retrying && remove(recipient, batch);
+			}
+		}
+	}
+
+	/**
+	 * Sends the segments of {@link batch}, one email each, from the account
+	 * {@link AccountRing#send(String, String)} picks for {@link recipient}, and
+	 * completes its messages as "sent" or "failed".
+	 * <p>
+	 * A batch that fails with a transient error, as told by
+	 * {@link Account#isPermanent(MessagingException)}, is retried with backoff
+	 * and resumes at the segment that failed, so segments that were delivered
+	 * are not sent again. An unexpected error fails the messages of the
+	 * batch and is passed to {@link #errorHandler}. The number of emails sent is
+	 * recorded in counter "send.emails".
+	 *
+	 * @param recipient email address to send to
+	 * @param batch     batch to send
+	 * @return boolean true if {@link batch} was scheduled to be retried
+	 */
+	private boolean send(String recipient, Batch batch) {
+		int attempts = 0;
+		for (OutboundMessage message : batch.messages)
+			attempts = message.attempt();
+		try {
+			while (batch.sent < batch.segments.size()) {
+				accounts.send(recipient, batch.segments.get(batch.sent));
+				EMAILS.increment();
+				batch.sent++;
+			}
+			complete(batch, "sent");
+		} catch (MessagingException e) {
+			if (Account.isPermanent(e) || attempts >= maxAttempts) {
+				complete(batch, "failed");
+			} else {
+				RETRIES.increment();
+				long backoff = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << (attempts - 1));
+				long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+				Workers.scheduler().schedule(() -> Workers.send().execute(() -> drain(recipient)), delay,
+						TimeUnit.MILLISECONDS);
+				return true;
+			}
+		} catch (RuntimeException e) {
+			error(e);
+			complete(batch, "failed");
+		}
+		return false;
+	}
+
+	/**
+	 * Removes {@link batch} and its messages from the lane of {@link recipient},
+	 * and the lane itself if it is left empty.
+	 *
+	 * @param recipient email address whose lane {@link batch} is in
+	 * @param batch     batch that is done
+	 * @return boolean true if the lane has more messages to send
+	 */
+	private synchronized boolean remove(String recipient, Batch batch) {
+		batches.remove(recipient);
+		Deque<OutboundMessage> lane = lanes.get(recipient);
+		for (int i = 0; i < batch.messages.size(); i++)
+			lane.pollFirst();
+		if (lane.isEmpty()) {
+			lanes.remove(recipient);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Completes every message of {@link batch} whose outcome is not known yet with
+	 * {@link #complete(OutboundMessage, String)}.
+	 *
+	 * @param batch  batch whose messages to complete
+	 * @param status "sent" or "failed"
+	 */
+	private void complete(Batch batch, String status) {
+		for (OutboundMessage message : batch.messages)
+			if (message.getStatus().equals("sending"))
+				complete(message, status);
+	}
+
+	/**
+	 * Records the outcome of {@link message} in the journal, logs it, and
+	 * notifies the listener of its conversation. The time from enqueueing to the
+	 * outcome is recorded in histogram "send.latency".
+	 * <p>
+	 * The journal is written first, so a crash in between can leave the outcome
+	 * unlogged but never sends the message again. Errors of writing either file,
+	 * or of the listener, are passed to {@link #errorHandler}.
+	 *
+	 * @param message message whose outcome is known
+	 * @param status  "sent" or "failed"
+	 */
+	private void complete(OutboundMessage message, String status) {
+		synchronized (this) {
+			pending--;
+			try {
+				if (pending == 0)
+					rewrite(new ArrayList<String>());
+				else
+					write((status.equals("sent") ? "S " : "F ") + message.getId());
+			} catch (IOException e) {
+				error(e);
+			}
+		}
+		String line = ConversationLog.format(message.getBody(), status);
+		try {
+			new ConversationLog(message.getLog()).append(line);
+		} catch (IOException e) {
+			error(e);
+		}
+		message.setOutcome(status, line);
+		LATENCY.time(message.getEnqueuedNanos());
+		(status.equals("sent") ? SENT : FAILED).increment();
+		Consumer<OutboundMessage> listener = listeners.get(message.getLog().getAbsolutePath());
+		try {
+			if (listener != null)
+				listener.accept(message);
+		} catch (RuntimeException e) {
+			error(e);
+		}
+	}
+
+	/**
+	 * Sets {@link errorHandler} to be passed every error of sending messages or of
+	 * recording their outcome, so it can be shown to the user.
+	 *
+	 * @param errorHandler handler of errors, or null to only count them
+	 */
+	public void setErrorHandler(Consumer<Exception> errorHandler) {
+		this.errorHandler = errorHandler;
+	}
+
+	/**
+	 * Counts {@link e} in counter "outbound.errors" and passes it to
+	 * {@link #errorHandler}.
+	 *
+	 * @param e error to report
+	 */
+	private void error(Exception e) {
+		ERRORS.increment();
+		Consumer<Exception> errors = errorHandler;
+		if (errors != null)
+			errors.accept(e);
+	}
+
+	/**
+	 * Reads the journal, resubmits every message that was enqueued but never sent
+	 * or failed, and rewrites the journal with only those messages.
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void replay() throws IOException {
+		if (!journal.isFile())
+			return;
+		Map<String, String> enqueued = new LinkedHashMap<String, String>();
+		try (BufferedReader in = Files.newBufferedReader(journal.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ");
+				if (fields[0].equals("Q") && fields.length == 5)
+					enqueued.put(fields[1], line);
+				else if (fields.length == 2)
+					enqueued.remove(fields[1]);
+			}
+		}
+		rewrite(new ArrayList<String>(enqueued.values()));
+		for (String line : enqueued.values()) {
+			String[] fields = line.split(" ");
+			submit(new OutboundMessage(fields[1], new File(decode(fields[2])), decode(fields[3]), decode(fields[4])));
+		}
+	}
+
+	/**
+	 * Replaces the journal with {@link lines}.
+	 * <p>
+	 * The lines are written to a temporary file next to the journal, forced to
+	 * disk, and moved over the journal, so a crash leaves either the old journal
+	 * or the new one.
+	 *
+	 * @param lines journal records to keep
+	 * @throws IOException
+	 */
+	private void rewrite(List<String> lines) throws IOException {
+		File temp = new File(journal.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (String line : lines)
+				channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+			channel.force(false);
+		}
+		Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Appends {@link line} to the journal and forces it to disk.
+	 *
+	 * @param line journal record to append
+	 * @throws IOException
+	 */
+	private void write(String line) throws IOException {
+		try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Encodes {@link text} so it contains no spaces or line breaks.
+	 *
+	 * @param text text to encode
+	 * @return String Base64 of {@link text}
+	 */
+	private static String encode(String text) {
+		return Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Decodes {@link text} encoded with {@link #encode(String)}.
+	 *
+	 * @param text text to decode
+	 * @return String decoded text
+	 */
+	private static String decode(String text) {
+		return new String(Base64.getDecoder().decode(text), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Messages of one lane that are sent together.
+	 */
+	private static class Batch {
+
+		private final List<OutboundMessage> messages;
+		private final List<String> segments;
+		private int sent = 0;
+
+		/**
+		 * Constructs a new Batch of {@link messages}, whose bodies are joined by line
+		 * breaks and split with {@link SmsSegmenter#split(String)}.
+		 *
+		 * @param messages messages to send together, in order
+		 */
+		private Batch(List<OutboundMessage> messages) {
+			this.messages = messages;
+			List<String> bodies = new ArrayList<String>();
+			for (OutboundMessage message : messages)
+				bodies.add(message.getBody());
+			this.segments = SmsSegmenter.split(String.join("\n", bodies));
+		}
+	}
+}
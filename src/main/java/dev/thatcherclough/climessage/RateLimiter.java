@@ -0,0 +1,47 @@
+package dev.thatcherclough.climessage;
+
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiter {
+
+	private final double permitsPerNano;
+	private final double capacity;
+	private double available;
+	private long refilled = System.nanoTime();
+
+	/**
+	 * Constructs a new RateLimiter that allows {@link perMinute} permits per
+	 * minute.
+	 * <p>
+	 * Permits are refilled continuously into a bucket that holds at most one
+	 * second worth of permits, or one permit if less than one permit per second is
+	 * allowed, so short bursts stay under the rate too.
+	 *
+	 * @param perMinute permits per minute, or 0 for no limit
+	 */
+	public RateLimiter(long perMinute) {
+		permitsPerNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+		capacity = Math.max(1, perMinute / 60.0);
+		available = capacity;
+	}
+
+	/**
+	 * Waits until a permit is available and takes it.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		if (permitsPerNano == 0)
+			return;
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			available = Math.min(capacity, available + (now - refilled) * permitsPerNano);
+			refilled = now;
+			available--;
+			wait = available >= 0 ? 0 : (long) (-available / permitsPerNano);
+		}
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+}
@@ -1,35 +1,72 @@
 package dev.thatcherclough.climessage;
 
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.util.Scanner;
 import org.fusesource.jansi.Ansi;
+import org.fusesource.jansi.internal.CLibrary;
+import org.fusesource.jansi.internal.CLibrary.Termios;
 
 public class RawConsole {
 
+    private static final boolean BSD = System.getProperty("os.name", "").toLowerCase().matches(".*(mac|bsd).*");
+    private static final long IFLAG_RAW = BSD ? 0x3EB : 0x5EB; // IGNBRK BRKINT PARMRK ISTRIP INLCR IGNCR ICRNL IXON
+    private static final long OFLAG_RAW = 0x1; // OPOST
+    private static final long LFLAG_RAW = BSD ? 0x598 : 0x804B; // ECHO ECHONL ICANON ISIG IEXTEN
+    private static final long CFLAG_RAW = BSD ? 0x1300 : 0x130; // CSIZE PARENB
+    private static final long CS8 = BSD ? 0x300 : 0x30;
+    private static final int VMIN = BSD ? 16 : 6;
+    private static final int VTIME = BSD ? 17 : 5;
+    private static final String BRACKETED_PASTE_ON = "\033[?2004h";
+    private static final String BRACKETED_PASTE_OFF = "\033[?2004l";
+
+    private static Termios saved = null;
+    private static String savedStty = null;
+
     /**
-     * Enables "raw" mode on the current unix console.
-     * 
+     * Enables "raw" mode on the current unix console and bracketed paste.
+     * <p>
+     * The console attributes are saved and changed in-process with tcgetattr and
+     * tcsetattr, so no shell is forked. If that is not possible, a single "stty"
+     * saves the current mode and enables "raw" mode. Does nothing if "raw" mode
+     * is already enabled.
+     *
      * @throws InterruptedException
      * @throws IOException
      */
-    public static void enable() throws InterruptedException, IOException {
-        Runtime.getRuntime().exec(new String[] { "/bin/sh", "-c", "stty raw </dev/tty" }).waitFor();
+    public static synchronized void enable() throws InterruptedException, IOException {
+        if (saved != null || savedStty != null)
+            return;
+        if (!enableTermios())
+            savedStty = stty("stty -g </dev/tty && stty raw -echo </dev/tty").trim();
+        System.out.print(BRACKETED_PASTE_ON);
+        System.out.flush();
     }
 
     /**
-     * Disables "raw" mode on the current unix console.
-     * 
+     * Disables "raw" mode on the current unix console by restoring the mode saved
+     * by {@link #enable()}, and disables bracketed paste.
+     *
      * @throws InterruptedException
      * @throws IOException
      */
-    public static void disable() throws InterruptedException, IOException {
-        Runtime.getRuntime().exec(new String[] { "/bin/sh", "-c", "stty cooked </dev/tty" }).waitFor();
+    public static synchronized void disable() throws InterruptedException, IOException {
+        if (saved == null && savedStty == null)
+            return;
+        System.out.print(BRACKETED_PASTE_OFF);
+        System.out.flush();
+        if (saved != null)
+            CLibrary.tcsetattr(CLibrary.STDIN_FILENO, CLibrary.TCSANOW, saved);
+        else
+            stty("stty '" + savedStty + "' </dev/tty");
+        saved = null;
+        savedStty = null;
     }
 
     /**
      * Moves the cursor to the beginning of the current line, prints
      * {@link toPrint}, and moves the cursor to the beginning of the next line.
-     * 
+     *
      * @param toPrint string to print
      */
     public static void println(String toPrint) {
@@ -37,35 +74,47 @@ public class RawConsole {
     }
 
     /**
-     * Gets keyboard input when console is in "raw" mode.
-     * 
-     * @param reader {@link java.io.Reader} used to get typed characters
-     * @return String keyboard input
-     * @throws IOException
+     * Enables "raw" mode with tcsetattr, like cfmakeraw does.
+     *
+     * @return boolean if "raw" mode was enabled
+     */
+    private static boolean enableTermios() {
+        try {
+            Termios original = new Termios();
+            Termios raw = new Termios();
+            if (CLibrary.tcgetattr(CLibrary.STDIN_FILENO, original) != 0
+                    || CLibrary.tcgetattr(CLibrary.STDIN_FILENO, raw) != 0)
+                return false;
+            raw.c_iflag &= ~IFLAG_RAW;
+            raw.c_oflag &= ~OFLAG_RAW;
+            raw.c_lflag &= ~LFLAG_RAW;
+            raw.c_cflag = (raw.c_cflag & ~CFLAG_RAW) | CS8;
+            raw.c_cc[VMIN] = 1;
+            raw.c_cc[VTIME] = 0;
+            if (CLibrary.tcsetattr(CLibrary.STDIN_FILENO, CLibrary.TCSANOW, raw) != 0)
+                return false;
+            saved = original;
+            return true;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs {@link command} with "/bin/sh" and waits for it to finish.
+     *
+     * @param command command to run
+     * @return String output of {@link command}
      * @throws InterruptedException
+     * @throws IOException
      */
-    public static String getInput(Reader reader) throws IOException, InterruptedException {
-        String ret = "";
-        while (true) {
-            int ascii = reader.read();
-            if (ascii == 13 && !ret.isEmpty())
-                break;
-            else if (ascii == 127 && !ret.isEmpty()) {
-                System.out.print("\b ");
-                System.out.print(Ansi.ansi().cursorLeft(1));
-                ret = ret.substring(0, ret.length() - 1);
-            } else if (ascii == 3) {
-                disable();
-                Thread.sleep(100);
-                System.out.print(Ansi.ansi().eraseScreen().cursor(0, 0));
-                Thread.sleep(100);
-                System.exit(0);
-            } else if (ascii >= 32 && ascii <= 126) {
-                char typed = (char) ascii;
-                System.out.print(typed);
-                ret += typed;
-            }
+    private static String stty(String command) throws InterruptedException, IOException {
+        Process process = Runtime.getRuntime().exec(new String[] { "/bin/sh", "-c", command });
+        String output;
+        try (InputStream in = process.getInputStream(); Scanner scanner = new Scanner(in).useDelimiter("\\A")) {
+            output = scanner.hasNext() ? scanner.next() : "";
         }
-        return ret;
+        process.waitFor();
+        return output;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,90 @@
+package dev.thatcherclough.climessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class ReceivedEmail {
+
+	/**
+	 * Handles each received email, throwing if it could not be stored so it is
+	 * received again.
+	 */
+	public interface Handler {
+		void handle(ReceivedEmail email) throws IOException;
+	}
+
+	private final String sender;
+	private final String body;
+	private final Date sentDate;
+	private final List<String> media;
+
+	/**
+	 * Constructs a new ReceivedEmail.
+	 *
+	 * @param sender   phone number the email was sent from
+	 * @param body     body of the email
+	 * @param sentDate value of the Date header of the email
+	 * @param media    names of the attachments of the email in the
+	 *                 {@link AttachmentStore}
+	 */
+	public ReceivedEmail(String sender, String body, Date sentDate, List<String> media) {
+		this.sender = sender;
+		this.body = body;
+		this.sentDate = sentDate;
+		this.media = media;
+	}
+
+	/**
+	 * Gets the phone number the email was sent from.
+	 *
+	 * @return String phone number of the sender
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	/**
+	 * Gets the body of the email.
+	 *
+	 * @return String body of the email
+	 */
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * Gets the names of the attachments of the email in the
+	 * {@link AttachmentStore}.
+	 *
+	 * @return List of names of stored attachments
+	 */
+	public List<String> getMedia() {
+		return media;
+	}
+
+	/**
+	 * Gets the messages to log for the email: its body, if it has one, followed
+	 * by a reference to each of its attachments.
+	 *
+	 * @return List of messages
+	 */
+	public List<String> getMessages() {
+		List<String> ret = new ArrayList<String>();
+		if (body != null && !body.trim().isEmpty())
+			ret.add(body);
+		for (String name : media)
+			ret.add(AttachmentStore.reference(name));
+		return ret;
+	}
+
+	/**
+	 * Gets the value of the Date header of the email.
+	 *
+	 * @return Date the email was sent, or null if it has no Date header
+	 */
+	public Date getSentDate() {
+		return sentDate;
+	}
+}
@@ -0,0 +1,207 @@
+package dev.thatcherclough.climessage;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.fusesource.jansi.Ansi;
+
+public class Renderer {
+
+	private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1)
+			/ Math.max(1, Settings.getLong("render.max.fps", 30));
+	private static final Histogram FRAME = Metrics.histogram("render.frame");
+	private static final LongAdder REQUESTS = Metrics.counter("render.requests");
+
+	private final PrintStream out;
+	private final String[] header;
+	private final int statusRow;
+	private final int inputRow;
+	private final int firstRow;
+	private final String[] lines;
+	private final String[] drawn;
+	private String status = "";
+	private String drawnStatus = "";
+	private String input = "";
+	private int cursor = 0;
+	private String drawnInput = null;
+	private int drawnCursor = -1;
+	private boolean scheduled = false;
+	private boolean closed = false;
+	private long lastFrame = System.nanoTime() - FRAME_NANOS;
+
+	/**
+	 * Constructs a new Renderer that draws the lines of {@link header} at the top
+	 * of the console, a status line below them, the input line below the status
+	 * line, and {@link rows} lines of messages two rows below the input line.
+	 *
+	 * @param header lines to draw at the top of the console
+	 * @param rows   number of message lines
+	 */
+	public Renderer(String[] header, int rows) {
+		this(header, rows, System.out);
+	}
+
+	/**
+	 * Constructs a new Renderer like {@link #Renderer(String[], int)} that draws
+	 * to {@link out} instead of the console.
+	 *
+	 * @param header lines to draw at the top of {@link out}
+	 * @param rows   number of message lines
+	 * @param out    stream to draw to
+	 */
+	public Renderer(String[] header, int rows, PrintStream out) {
+		this.out = out;
+		this.header = header;
+		this.statusRow = header.length + 1;
+		this.inputRow = header.length + 2;
+		this.firstRow = inputRow + 2;
+		this.lines = new String[rows];
+		this.drawn = new String[rows];
+		Arrays.fill(lines, "");
+	}
+
+	/**
+	 * Sets the message lines to {@link page}, padded with empty lines, and
+	 * requests a frame.
+	 *
+	 * @param page message lines to draw, newest first
+	 */
+	public synchronized void setMessages(List<String> page) {
+		for (int k = 0; k < lines.length; k++)
+			lines[k] = k < page.size() ? page.get(k) : "";
+		request();
+	}
+
+	/**
+	 * Sets the input line to {@link text} with the cursor {@link cursor}
+	 * characters into it and requests a frame.
+	 *
+	 * @param text   typed text
+	 * @param cursor position of the cursor in {@link text}
+	 */
+	public synchronized void setInput(String text, int cursor) {
+		this.input = text;
+		this.cursor = cursor;
+		request();
+	}
+
+	/**
+	 * Sets the status line to {@link status} and requests a frame.
+	 *
+	 * @param status status to draw, or an empty String to clear it
+	 */
+	public synchronized void setStatus(String status) {
+		this.status = status;
+		request();
+	}
+
+	/**
+	 * Draws a frame now and waits until it is drawn.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		try {
+			Workers.render().submit(this::frame).get();
+		} catch (ExecutionException e) {
+		}
+	}
+
+	/**
+	 * Stops drawing frames and clears the console once the frames already
+	 * requested are drawn.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		try {
+			Workers.render().submit(() -> {
+				out.print(Ansi.ansi().eraseScreen().cursor(1, 1));
+				out.flush();
+			}).get();
+		} catch (InterruptedException | ExecutionException | RejectedExecutionException e) {
+		}
+	}
+
+	/**
+	 * Schedules a frame on {@link Workers#render()} if none is scheduled yet.
+	 * <p>
+	 * The frame is drawn at most once every 1 / setting "render.max.fps" seconds,
+	 * so a burst of changes is drawn in a single frame. Requests are counted in
+	 * counter "render.requests".
+	 */
+	private void request() {
+		REQUESTS.increment();
+		if (scheduled || closed)
+			return;
+		scheduled = true;
+		long delay = Math.max(0, lastFrame + FRAME_NANOS - System.nanoTime());
+		Workers.render().schedule(this::frame, delay, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Draws a frame.
+	 * <p>
+	 * Only the lines that differ from the lines already on the console are drawn,
+	 * and the whole frame is written to {@link #out} at once. Only runs on
+	 * {@link Workers#render()}, which is the only thread that writes to the
+	 * console while the renderer is open. The time to draw frames that changed
+	 * anything is recorded in histogram "render.frame".
+	 */
+	private void frame() {
+		long start = System.nanoTime();
+		String[] wanted;
+		String text;
+		String statusText;
+		int column;
+		synchronized (this) {
+			scheduled = false;
+			if (closed)
+				return;
+			lastFrame = System.nanoTime();
+			wanted = lines.clone();
+			text = input;
+			statusText = status;
+			column = cursor;
+		}
+		Ansi frame = Ansi.ansi();
+		boolean changed = false;
+		if (drawnInput == null) {
+			frame.eraseScreen();
+			for (int k = 0; k < header.length; k++)
+				frame.cursor(k + 1, 1).a(header[k]);
+			changed = true;
+		}
+		for (int k = 0; k < wanted.length; k++) {
+			if (!wanted[k].equals(drawn[k])) {
+				frame.cursor(firstRow + k, 1).eraseLine().a(wanted[k]);
+				drawn[k] = wanted[k];
+				changed = true;
+			}
+		}
+		if (!statusText.equals(drawnStatus)) {
+			frame.cursor(statusRow, 1).eraseLine().a(statusText);
+			drawnStatus = statusText;
+			changed = true;
+		}
+		if (!text.equals(drawnInput)) {
+			frame.cursor(inputRow, 1).eraseLine().a(">").a(text);
+			drawnInput = text;
+			changed = true;
+		}
+		if (changed || column != drawnCursor) {
+			frame.cursor(inputRow, column + 2);
+			drawnCursor = column;
+			out.print(frame);
+			out.flush();
+			FRAME.time(start);
+		}
+	}
+}
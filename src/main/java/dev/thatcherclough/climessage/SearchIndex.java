@@ -0,0 +1,553 @@
+package dev.thatcherclough.climessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class SearchIndex {
+
+	private static final int MAGIC = 0x434c4d49;
+	private static final int MAX_RESULTS = 50;
+	private static final int MAX_LINE_BYTES = 4096;
+	private static final int CHUNK_BYTES = 65536;
+	private static final int MAX_TERM_CHARS = 255;
+	private static final long SAVE_DELAY_SECONDS = 30;
+	private static final Pattern DATE = Pattern.compile("\\[(\\d{2})/(\\d{2})/(\\d{4}) \\d{2}:\\d{2}:\\d{2}\\]$");
+	private static final DateTimeFormatter QUERY_DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+	private static SearchIndex index = null;
+
+	private final File file = new File("userdata" + File.separator + "search.index");
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final Map<String, Long> lengths = new HashMap<String, Long>();
+	private final Map<String, Postings> terms = new HashMap<String, Postings>();
+	private boolean saveScheduled = false;
+
+	/**
+	 * Lines of ".convo" files that contain a term.
+	 */
+	private static class Postings {
+		int size = 0;
+		int[] files = new int[4];
+		long[] offsets = new long[4];
+		int[] days = new int[4];
+
+		void add(int file, long offset, int day) {
+			if (size == files.length) {
+				files = Arrays.copyOf(files, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+				days = Arrays.copyOf(days, size * 2);
+			}
+			files[size] = file;
+			offsets[size] = offset;
+			days[size] = day;
+			size++;
+		}
+	}
+
+	/**
+	 * Gets the SearchIndex of every ".convo" file in "userdata".
+	 * <p>
+	 * The first call loads "userdata/search.index", or builds it with
+	 * {@link #rebuild()} if it does not exist, and then indexes whatever was
+	 * appended to each ".convo" file since the index was saved.
+	 *
+	 * @return SearchIndex of all conversations
+	 * @throws IOException
+	 */
+	public static synchronized SearchIndex get() throws IOException {
+		if (index == null) {
+			SearchIndex loaded = new SearchIndex();
+			if (!loaded.load())
+				loaded.rebuild();
+			else
+				loaded.catchUp();
+			index = loaded;
+		}
+		return index;
+	}
+
+	/**
+	 * Indexes the lines appended to {@link convo} since it was last indexed, if
+	 * the index has been loaded.
+	 * <p>
+	 * Called by {@link ConversationLog#append(String)} so the index stays current
+	 * without rescanning logs. If the index has not been loaded, nothing is done
+	 * and the lines are indexed when it is.
+	 *
+	 * @param convo ".convo" file that was appended to
+	 */
+	public static void update(File convo) {
+		SearchIndex current;
+		synchronized (SearchIndex.class) {
+			current = index;
+		}
+		if (current != null) {
+			try {
+				current.indexTail(convo);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Saves the loaded index now if a save is scheduled.
+	 */
+	public static void flush() {
+		SearchIndex current;
+		synchronized (SearchIndex.class) {
+			current = index;
+		}
+		if (current != null) {
+			synchronized (current) {
+				try {
+					if (current.saveScheduled)
+						current.save();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the index from every ".convo" file in "userdata", indexing the
+	 * files in parallel, and saves it.
+	 *
+	 * @throws IOException
+	 */
+	public void rebuild() throws IOException {
+		File[] convos = convos();
+		long[] indexed = new long[convos.length];
+		List<Map<String, Postings>> parts = IntStream.range(0, convos.length).parallel().mapToObj(k -> {
+			Map<String, Postings> part = new HashMap<String, Postings>();
+			try {
+				indexed[k] = indexLines(convos[k], 0, 0, part);
+			} catch (IOException e) {
+			}
+			return part;
+		}).collect(Collectors.toList());
+		synchronized (this) {
+			names.clear();
+			ids.clear();
+			lengths.clear();
+			terms.clear();
+			for (int k = 0; k < convos.length; k++) {
+				int id = id(convos[k].getName());
+				lengths.put(convos[k].getName(), indexed[k]);
+				for (Map.Entry<String, Postings> entry : parts.get(k).entrySet()) {
+					Postings from = entry.getValue();
+					Postings to = terms.computeIfAbsent(entry.getKey(), key -> new Postings());
+					for (int i = 0; i < from.size; i++)
+						to.add(id, from.offsets[i], from.days[i]);
+				}
+			}
+			save();
+		}
+	}
+
+	/**
+	 * Searches all conversations for {@link query}.
+	 * <p>
+	 * {@link query} is a list of terms that must all appear in a message. Quoted
+	 * text must appear as a phrase. "after:MM/dd/yyyy" and "before:MM/dd/yyyy"
+	 * limit the results to messages logged on or after and on or before a date.
+	 * Only the postings of the terms are read, plus one line per candidate of a
+	 * phrase query.
+	 *
+	 * @param query query to search for
+	 * @return List of matching lines, newest first, prefixed with the name of
+	 *         their conversation
+	 * @throws IOException
+	 * @throws IllegalArgumentException if a date of {@link query} is not
+	 *                                  MM/dd/yyyy
+	 */
+	public synchronized List<String> search(String query) throws IOException {
+		List<String> words = new ArrayList<String>();
+		List<String> phrases = new ArrayList<String>();
+		int after = Integer.MIN_VALUE;
+		int before = Integer.MAX_VALUE;
+		Matcher matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(query);
+		while (matcher.find()) {
+			if (matcher.group(1) != null) {
+				phrases.add(matcher.group(1).toLowerCase());
+				words.addAll(tokenize(matcher.group(1)));
+			} else if (matcher.group(2).startsWith("after:"))
+				after = queryDay(matcher.group(2).substring(6));
+			else if (matcher.group(2).startsWith("before:"))
+				before = queryDay(matcher.group(2).substring(7));
+			else
+				words.addAll(tokenize(matcher.group(2)));
+		}
+		List<String> ret = new ArrayList<String>();
+		if (words.isEmpty())
+			return ret;
+		Postings smallest = null;
+		for (String word : words) {
+			Postings postings = terms.get(word);
+			if (postings == null)
+				return ret;
+			if (smallest == null || postings.size < smallest.size)
+				smallest = postings;
+		}
+		Map<Long, Integer> candidates = new HashMap<Long, Integer>();
+		for (int k = 0; k < smallest.size; k++)
+			if (smallest.days[k] >= after && smallest.days[k] <= before)
+				candidates.put(key(smallest.files[k], smallest.offsets[k]), smallest.days[k]);
+		for (String word : words) {
+			Postings postings = terms.get(word);
+			if (postings == smallest)
+				continue;
+			Map<Long, Integer> matching = new HashMap<Long, Integer>();
+			for (int k = 0; k < postings.size; k++) {
+				long key = key(postings.files[k], postings.offsets[k]);
+				if (candidates.containsKey(key))
+					matching.put(key, postings.days[k]);
+			}
+			candidates = matching;
+		}
+		Map<Long, Integer> days = candidates;
+		List<Long> sorted = new ArrayList<Long>(candidates.keySet());
+		sorted.sort((first, second) -> days.get(first).equals(days.get(second))
+				? Long.compare(second & 0xffffffffffL, first & 0xffffffffffL)
+				: Integer.compare(days.get(second), days.get(first)));
+		for (long key : sorted) {
+			if (ret.size() == MAX_RESULTS)
+				break;
+			String name = names.get((int) (key >>> 40));
+			String line = readLine(new File("userdata" + File.separator + name), key & 0xffffffffffL);
+			if (line == null)
+				continue;
+			boolean matches = true;
+			for (String phrase : phrases)
+				matches &= text(line).toLowerCase().contains(phrase);
+			if (matches)
+				ret.add(name.substring(0, name.lastIndexOf("-")) + ": " + line);
+		}
+		return ret;
+	}
+
+	/**
+	 * Indexes the lines appended to {@link convo} since it was last indexed. If
+	 * {@link convo} got shorter, it is reindexed from the start.
+	 *
+	 * @param convo ".convo" file to index
+	 * @throws IOException
+	 */
+	private synchronized void indexTail(File convo) throws IOException {
+		String name = convo.getName();
+		int id = id(name);
+		long indexed = lengths.containsKey(name) ? lengths.get(name) : 0;
+		if (convo.length() < indexed) {
+			for (Postings postings : terms.values()) {
+				int kept = 0;
+				for (int k = 0; k < postings.size; k++) {
+					if (postings.files[k] != id) {
+						postings.files[kept] = postings.files[k];
+						postings.offsets[kept] = postings.offsets[k];
+						postings.days[kept] = postings.days[k];
+						kept++;
+					}
+				}
+				postings.size = kept;
+			}
+			indexed = 0;
+		}
+		if (convo.length() == indexed)
+			return;
+		lengths.put(name, indexLines(convo, id, indexed, terms));
+		scheduleSave();
+	}
+
+	/**
+	 * Indexes every ".convo" file that changed since the index was saved.
+	 *
+	 * @throws IOException
+	 */
+	private void catchUp() throws IOException {
+		for (File convo : convos())
+			indexTail(convo);
+	}
+
+	/**
+	 * Indexes the complete lines of {@link convo} after offset {@link start} into
+	 * {@link into}.
+	 * <p>
+	 * The file is read in chunks of {@link #CHUNK_BYTES} bytes. A line cut off at
+	 * the end of a chunk is read again at the start of the next one, and a chunk
+	 * is doubled while it is too small to hold one whole line.
+	 *
+	 * @param convo ".convo" file to index
+	 * @param id    id of {@link convo} in the index
+	 * @param start offset of the first line to index
+	 * @param into  map of terms to postings to add to
+	 * @return long offset after the last indexed line
+	 * @throws IOException
+	 */
+	private static long indexLines(File convo, int id, long start, Map<String, Postings> into) throws IOException {
+		long chunkStart = start;
+		try (FileChannel channel = FileChannel.open(convo.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+			while (true) {
+				buffer.clear();
+				while (buffer.hasRemaining() && channel.read(buffer, chunkStart + buffer.position()) > 0)
+					;
+				byte[] bytes = buffer.array();
+				int length = buffer.position();
+				int lineStart = 0;
+				for (int k = 0; k < length; k++) {
+					if (bytes[k] != '\n')
+						continue;
+					String line = new String(bytes, lineStart, k - lineStart, StandardCharsets.UTF_8).trim();
+					int day = day(line);
+					for (String term : new HashSet<String>(tokenize(text(line))))
+						into.computeIfAbsent(term, key -> new Postings()).add(id, chunkStart + lineStart, day);
+					lineStart = k + 1;
+				}
+				chunkStart += lineStart;
+				if (length < buffer.capacity())
+					return chunkStart;
+				if (lineStart == 0)
+					buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+			}
+		}
+	}
+
+	/**
+	 * Reads the line of {@link convo} at offset {@link offset}.
+	 *
+	 * @param convo  ".convo" file to read
+	 * @param offset offset of the line
+	 * @return String line, or null if {@link convo} no longer exists
+	 * @throws IOException
+	 */
+	private static String readLine(File convo, long offset) throws IOException {
+		if (!convo.isFile())
+			return null;
+		try (FileChannel channel = FileChannel.open(convo.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(MAX_LINE_BYTES);
+			channel.read(buffer, offset);
+			int length = 0;
+			while (length < buffer.position() && buffer.get(length) != '\n')
+				length++;
+			return new String(buffer.array(), 0, length, StandardCharsets.UTF_8).trim();
+		}
+	}
+
+	/**
+	 * Loads "userdata/search.index".
+	 *
+	 * @return boolean if the index was loaded
+	 */
+	private synchronized boolean load() {
+		if (!file.isFile())
+			return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				return false;
+			int fileCount = in.readInt();
+			for (int k = 0; k < fileCount; k++) {
+				String name = in.readUTF();
+				id(name);
+				lengths.put(name, in.readLong());
+			}
+			int termCount = in.readInt();
+			for (int k = 0; k < termCount; k++) {
+				String term = in.readUTF();
+				int size = in.readInt();
+				Postings postings = new Postings();
+				for (int i = 0; i < size; i++)
+					postings.add(in.readInt(), in.readLong(), in.readInt());
+				terms.put(term, postings);
+			}
+			return true;
+		} catch (IOException e) {
+			names.clear();
+			ids.clear();
+			lengths.clear();
+			terms.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * Saves the index to "userdata/search.index" after {@link #SAVE_DELAY_SECONDS}
+	 * seconds unless a save is already scheduled.
+	 */
+	private void scheduleSave() {
+		if (saveScheduled)
+			return;
+		saveScheduled = true;
+		Workers.scheduler().schedule(() -> {
+			synchronized (this) {
+				try {
+					save();
+				} catch (IOException e) {
+				}
+			}
+		}, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Atomically replaces "userdata/search.index" with the current index.
+	 *
+	 * @throws IOException
+	 */
+	private void save() throws IOException {
+		saveScheduled = false;
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(names.size());
+			for (String name : names) {
+				out.writeUTF(name);
+				out.writeLong(lengths.containsKey(name) ? lengths.get(name) : 0);
+			}
+			out.writeInt(terms.size());
+			for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+				Postings postings = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeInt(postings.size);
+				for (int k = 0; k < postings.size; k++) {
+					out.writeInt(postings.files[k]);
+					out.writeLong(postings.offsets[k]);
+					out.writeInt(postings.days[k]);
+				}
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Gets the id of ".convo" file {@link name}, assigning a new id if it has none.
+	 *
+	 * @param name name of ".convo" file
+	 * @return int id of {@link name}
+	 */
+	private int id(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.size();
+			names.add(name);
+			ids.put(name, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Gets the ".convo" files in "userdata".
+	 *
+	 * @return File[] of ".convo" files
+	 */
+	private static File[] convos() {
+		File[] convos = new File("userdata").listFiles((dir, name) -> name.endsWith(".convo"));
+		return convos == null ? new File[0] : convos;
+	}
+
+	/**
+	 * Gets the message of ".convo" line {@link line} without its status and
+	 * timestamp.
+	 *
+	 * @param line line of a ".convo" file
+	 * @return String message of {@link line}
+	 */
+	private static String text(String line) {
+		int end = line.lastIndexOf("  -  [");
+		return end < 0 ? line : line.substring(0, end);
+	}
+
+	/**
+	 * Parses date {@link date} of an "after:" or "before:" query term.
+	 *
+	 * @param date date formatted as MM/dd/yyyy
+	 * @return int epoch day of {@link date}
+	 * @throws IllegalArgumentException if {@link date} is not MM/dd/yyyy
+	 */
+	private static int queryDay(String date) {
+		try {
+			return (int) LocalDate.parse(date, QUERY_DATE).toEpochDay();
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid date \"" + date + "\", expected MM/dd/yyyy", e);
+		}
+	}
+
+	/**
+	 * Gets the day ".convo" line {@link line} was logged from its timestamp.
+	 *
+	 * @param line line of a ".convo" file
+	 * @return int epoch day of {@link line}, or 0 if it has no timestamp
+	 */
+	private static int day(String line) {
+		Matcher matcher = DATE.matcher(line);
+		if (!matcher.find())
+			return 0;
+		try {
+			return (int) LocalDate.of(Integer.parseInt(matcher.group(3)), Integer.parseInt(matcher.group(1)),
+					Integer.parseInt(matcher.group(2))).toEpochDay();
+		} catch (RuntimeException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Splits {@link text} into lower case terms of letters and digits.
+	 * <p>
+	 * Terms longer than {@link #MAX_TERM_CHARS} characters, such as pasted
+	 * encoded data, are left out, since nobody searches for them and
+	 * {@link #save()} could not write them.
+	 *
+	 * @param text text to split
+	 * @return List of terms
+	 */
+	private static List<String> tokenize(String text) {
+		List<String> ret = new ArrayList<String>();
+		StringBuilder term = new StringBuilder();
+		for (int k = 0; k <= text.length(); k++) {
+			char character = k < text.length() ? text.charAt(k) : ' ';
+			if (Character.isLetterOrDigit(character))
+				term.append(Character.toLowerCase(character));
+			else if (term.length() > 0) {
+				if (term.length() <= MAX_TERM_CHARS)
+					ret.add(term.toString());
+				term.setLength(0);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Packs a file id and offset into one key.
+	 *
+	 * @param file   id of ".convo" file
+	 * @param offset offset of line
+	 * @return long key of the line
+	 */
+	private static long key(int file, long offset) {
+		return ((long) file << 40) | offset;
+	}
+}
@@ -0,0 +1,76 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+public class Settings {
+
+	private static Properties settings = null;
+
+	/**
+	 * Gets the value of setting {@link key}.
+	 * <p>
+	 * Settings are read from system property "climessage.{@link key}" or, if that
+	 * is not set, from "userdata/settings.properties". The file is optional and is
+	 * only read once.
+	 *
+	 * @param key          name of setting
+	 * @param defaultValue value to return if setting {@link key} is not set
+	 * @return String value of setting {@link key}
+	 */
+	public static String get(String key, String defaultValue) {
+		String value = System.getProperty("climessage." + key);
+		if (value != null)
+			return value;
+		return load().getProperty(key, defaultValue);
+	}
+
+	/**
+	 * Gets the value of setting {@link key} as a boolean.
+	 *
+	 * @param key          name of setting
+	 * @param defaultValue value to return if setting {@link key} is not set
+	 * @return boolean value of setting {@link key}
+	 */
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		return Boolean.parseBoolean(get(key, Boolean.toString(defaultValue)));
+	}
+
+	/**
+	 * Gets the value of setting {@link key} as a long.
+	 *
+	 * @param key          name of setting
+	 * @param defaultValue value to return if setting {@link key} is not set or is
+	 *                     not a number
+	 * @return long value of setting {@link key}
+	 */
+	public static long getLong(String key, long defaultValue) {
+		try {
+			return Long.parseLong(get(key, Long.toString(defaultValue)).trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Loads "userdata/settings.properties" if it has not been loaded yet.
+	 *
+	 * @return Properties loaded from "userdata/settings.properties"
+	 */
+	private static synchronized Properties load() {
+		if (settings == null) {
+			settings = new Properties();
+			File file = new File("userdata" + File.separator + "settings.properties");
+			if (file.isFile()) {
+				try (InputStream in = new FileInputStream(file)) {
+					settings.load(in);
+				} catch (IOException e) {
+				}
+			}
+		}
+		return settings;
+	}
+}
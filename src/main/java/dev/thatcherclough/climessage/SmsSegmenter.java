@@ -0,0 +1,117 @@
+package dev.thatcherclough.climessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SmsSegmenter {
+
+	private static final String GSM_BASIC = "@£$¥èéùìòÇ\nØø\rÅåΔ_ΦΓΛΩΠΨΣΘΞÆæßÉ !\"#¤%&'()*+,-./0123456789:;<=>?"
+			+ "¡ABCDEFGHIJKLMNOPQRSTUVWXYZÄÖÑÜ§¿abcdefghijklmnopqrstuvwxyzäöñüà";
+	private static final String GSM_EXTENSION = "\f^{}\\[~]|€";
+	private static final int GSM_SINGLE = 160;
+	private static final int GSM_PART = 153;
+	private static final int UCS2_SINGLE = 70;
+	private static final int UCS2_PART = 67;
+
+	/**
+	 * Checks whether {@link text} can be encoded in the GSM 03.38 7-bit alphabet,
+	 * including its extension table.
+	 *
+	 * @param text text to check
+	 * @return boolean true if every character of {@link text} is in GSM-7
+	 */
+	public static boolean isGsm7(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (GSM_BASIC.indexOf(c) < 0 && GSM_EXTENSION.indexOf(c) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the length of {@link text} as counted by carriers.
+	 * <p>
+	 * In GSM-7, characters of the extension table count as two septets and all
+	 * others as one. If any character is not in GSM-7, the whole text is sent as
+	 * UCS-2 and every UTF-16 unit counts as one, so characters outside the Basic
+	 * Multilingual Plane, such as most emoji, count as two.
+	 *
+	 * @param text text to measure
+	 * @return int length of {@link text} in septets or UTF-16 units
+	 */
+	public static int length(String text) {
+		return length(text, 0, text.length(), isGsm7(text));
+	}
+
+	/**
+	 * Splits {@link text} into the segments carriers deliver as separate texts.
+	 * <p>
+	 * Text that fits one message, 160 GSM-7 septets or 70 UCS-2 units, is
+	 * returned as is. Longer text is split into parts of at most 153 septets or
+	 * 67 units, the room left by the header a phone adds to each part of a
+	 * concatenated message, so each part also fits a message of its own. Parts
+	 * end after the last space or line break that fits if there is one, and
+	 * never between the two halves of a surrogate pair. Joined in order, the
+	 * parts are {@link text}.
+	 *
+	 * @param text text to split
+	 * @return List of the segments of {@link text} in order
+	 */
+	public static List<String> split(String text) {
+		List<String> ret = new ArrayList<String>();
+		boolean gsm = isGsm7(text);
+		if (length(text, 0, text.length(), gsm) <= (gsm ? GSM_SINGLE : UCS2_SINGLE)) {
+			ret.add(text);
+			return ret;
+		}
+		int limit = gsm ? GSM_PART : UCS2_PART;
+		int start = 0;
+		while (start < text.length()) {
+			int end = start;
+			int used = 0;
+			while (end < text.length() && used + cost(text.charAt(end), gsm) <= limit)
+				used += cost(text.charAt(end++), gsm);
+			if (end < text.length()) {
+				int space = end;
+				while (space > start && !Character.isWhitespace(text.charAt(space - 1)))
+					space--;
+				if (space > start)
+					end = space;
+				else if (Character.isHighSurrogate(text.charAt(end - 1)))
+					end--;
+			}
+			ret.add(text.substring(start, end));
+			start = end;
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the length of the characters of {@link text} from {@link start} to
+	 * {@link end}.
+	 *
+	 * @param text  text to measure
+	 * @param start index of the first character
+	 * @param end   index after the last character
+	 * @param gsm   whether {@link text} is encoded in GSM-7
+	 * @return int length in septets or UTF-16 units
+	 */
+	private static int length(String text, int start, int end, boolean gsm) {
+		int ret = 0;
+		for (int i = start; i < end; i++)
+			ret += cost(text.charAt(i), gsm);
+		return ret;
+	}
+
+	/**
+	 * Gets the length of character {@link c}.
+	 *
+	 * @param c   character to measure
+	 * @param gsm whether the text of {@link c} is encoded in GSM-7
+	 * @return int 2 for characters of the GSM-7 extension table, otherwise 1
+	 */
+	private static int cost(char c, boolean gsm) {
+		return gsm && GSM_EXTENSION.indexOf(c) >= 0 ? 2 : 1;
+	}
+}
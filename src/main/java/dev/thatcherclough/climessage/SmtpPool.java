@@ -0,0 +1,248 @@
+package dev.thatcherclough.climessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+public class SmtpPool {
+
+	private static final int MAX_TRANSPORTS = (int) Settings.getLong("smtp.transports", 4);
+	private static final long KEEP_ALIVE_SECONDS = 60;
+	private static final Map<String, SmtpPool> pools = new ConcurrentHashMap<String, SmtpPool>();
+	private static final Histogram CONNECT = Metrics.histogram("smtp.connect");
+	private static final Histogram WAIT = Metrics.histogram("smtp.wait");
+	private static final Histogram SEND = Metrics.histogram("smtp.send");
+	private static final LongAdder RECONNECTS = Metrics.counter("smtp.reconnects");
+
+	private final Account account;
+	private final Session session;
+	private final LinkedBlockingDeque<Transport> idle = new LinkedBlockingDeque<Transport>();
+	private final Semaphore permits = new Semaphore(MAX_TRANSPORTS, true);
+	private final RateLimiter limiter;
+
+	/**
+	 * Constructs a new SmtpPool for {@link account}.
+	 * <p>
+	 * Creates a single {@link javax.mail.Session} shared by every transport of the
+	 * pool and schedules {@link #keepAlive()} to run every
+	 * {@link #KEEP_ALIVE_SECONDS} seconds.
+	 *
+	 * @param account account to send email from
+	 */
+	private SmtpPool(Account account) {
+		this.account = account;
+		this.session = EmailUtils.smtpSession(account);
+		this.limiter = new RateLimiter(account.getRatePerMinute());
+		Workers.scheduler().scheduleWithFixedDelay(this::keepAlive, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Gets the SmtpPool of {@link account}, creating it if it does not exist yet.
+	 *
+	 * @param account account to send email from
+	 * @return SmtpPool of the address of {@link account}
+	 */
+	public static SmtpPool get(Account account) {
+		return pools.computeIfAbsent(account.getAddress(), key -> new SmtpPool(account));
+	}
+
+	/**
+	 * Gets the {@link javax.mail.Session} that messages sent through this pool
+	 * should be created with.
+	 *
+	 * @return Session of this pool
+	 */
+	public Session getSession() {
+		return session;
+	}
+
+	/**
+	 * Gets the maximum number of transports this pool uses at once.
+	 *
+	 * @return int maximum number of transports
+	 */
+	public int getMaxTransports() {
+		return MAX_TRANSPORTS;
+	}
+
+	/**
+	 * Opens and authenticates a transport ahead of time so the first message does
+	 * not pay for the TLS handshake and login.
+	 *
+	 * @throws MessagingException
+	 */
+	public void warm() throws MessagingException {
+		permits.acquireUninterruptibly();
+		try {
+			release(borrow());
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Sends {@link message} on an already authenticated transport.
+	 * <p>
+	 * At most {@link #MAX_TRANSPORTS} transports are used at once, and at most
+	 * {@link Account#getRatePerMinute()} messages are sent per minute. If the
+	 * connection of the borrowed transport dropped while it was idle, the message
+	 * is sent again once on a freshly connected transport, which is closed if
+	 * that fails too. If the server rejects the message or its recipients, the
+	 * transport is returned to the pool if it is still connected. The time spent
+	 * waiting for the rate limit and a transport is recorded in histogram
+	 * "smtp.wait" and the time spent sending in histogram "smtp.send".
+	 *
+	 * @param message message to send
+	 * @throws MessagingException
+	 */
+	public void send(Message message) throws MessagingException {
+		long start = System.nanoTime();
+		try {
+			limiter.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted while waiting to send", e);
+		}
+		message.saveChanges();
+		permits.acquireUninterruptibly();
+		WAIT.time(start);
+		try {
+			long sending = System.nanoTime();
+			Transport transport = borrow();
+			try {
+				transport.sendMessage(message, message.getAllRecipients());
+			} catch (MessagingException e) {
+				if (e instanceof SendFailedException) {
+					recycle(transport);
+					throw e;
+				}
+				close(transport);
+				RECONNECTS.increment();
+				transport = connect();
+				try {
+					transport.sendMessage(message, message.getAllRecipients());
+				} catch (SendFailedException retry) {
+					recycle(transport);
+					throw retry;
+				} catch (MessagingException | RuntimeException retry) {
+					close(transport);
+					throw retry;
+				}
+			}
+			SEND.time(sending);
+			release(transport);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes every idle transport of every pool.
+	 */
+	public static void closeAll() {
+		for (SmtpPool pool : pools.values()) {
+			Transport transport;
+			while ((transport = pool.idle.pollFirst()) != null)
+				close(transport);
+		}
+	}
+
+	/**
+	 * Takes the most recently used idle transport, or connects a new one if there
+	 * is none.
+	 * <p>
+	 * The idle transport is not checked with a NOOP, since that would cost a round
+	 * trip per message. {@link #keepAlive()} drops closed transports, and
+	 * {@link #send(Message)} reconnects if one dropped since.
+	 *
+	 * @return Transport that was connected when it was released
+	 * @throws MessagingException
+	 */
+	private Transport borrow() throws MessagingException {
+		Transport transport = idle.pollFirst();
+		if (transport != null)
+			return transport;
+		return connect();
+	}
+
+	/**
+	 * Returns {@link transport} to the idle transports.
+	 *
+	 * @param transport transport to return
+	 */
+	private void release(Transport transport) {
+		idle.offerFirst(transport);
+	}
+
+	/**
+	 * Returns {@link transport} to the idle transports after the server rejected
+	 * a message on it, or closes it if the server closed the connection.
+	 *
+	 * @param transport transport a message was rejected on
+	 */
+	private void recycle(Transport transport) {
+		if (transport.isConnected())
+			release(transport);
+		else
+			close(transport);
+	}
+
+	/**
+	 * Connects and authenticates a new transport, recording the time it takes in
+	 * histogram "smtp.connect".
+	 *
+	 * @return connected Transport
+	 * @throws MessagingException
+	 */
+	private Transport connect() throws MessagingException {
+		long start = System.nanoTime();
+		Transport transport = session.getTransport("smtp");
+		transport.connect(account.getAddress(), account.getPassword());
+		CONNECT.time(start);
+		return transport;
+	}
+
+	/**
+	 * Checks every idle transport with a NOOP, which {@link Transport#isConnected()}
+	 * sends for SMTP, and drops the transports whose connection was closed.
+	 */
+	private void keepAlive() {
+		for (int k = idle.size(); k > 0; k--) {
+			if (!permits.tryAcquire())
+				return;
+			try {
+				Transport transport = idle.pollLast();
+				if (transport == null)
+					return;
+				if (transport.isConnected())
+					idle.offerFirst(transport);
+				else
+					close(transport);
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Closes {@link transport}, ignoring any error.
+	 *
+	 * @param transport transport to close
+	 */
+	private static void close(Transport transport) {
+		try {
+			if (transport != null)
+				transport.close();
+		} catch (MessagingException e) {
+		}
+	}
+}
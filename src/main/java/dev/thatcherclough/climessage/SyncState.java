@@ -0,0 +1,153 @@
+package dev.thatcherclough.climessage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SyncState {
+
+	private static final Map<String, SyncState> states = new ConcurrentHashMap<String, SyncState>();
+
+	private final File file;
+	private final Properties state = new Properties();
+	private final MessageIdSet seen = new MessageIdSet(4096);
+
+	/**
+	 * Constructs a new SyncState stored in "userdata/{@link address}.sync".
+	 *
+	 * @param address G-Mail address whose inbox is synced
+	 */
+	private SyncState(String address) {
+		file = new File("userdata" + File.separator + address + ".sync");
+		if (file.isFile()) {
+			try (InputStream in = new FileInputStream(file)) {
+				state.load(in);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Gets the SyncState of the inbox of G-Mail account {@link address}.
+	 *
+	 * @param address G-Mail address whose inbox is synced
+	 * @return SyncState of {@link address}
+	 */
+	public static SyncState get(String address) {
+		return states.computeIfAbsent(address, SyncState::new);
+	}
+
+	/**
+	 * Checks that the stored high-water marks belong to UIDVALIDITY
+	 * {@link uidValidity}.
+	 * <p>
+	 * If they do not, the marks are no longer meaningful and are all reset to
+	 * {@link uidNext} - 1, so only email that arrives from now on is received.
+	 *
+	 * @param uidValidity current UIDVALIDITY of the inbox
+	 * @param uidNext     current UIDNEXT of the inbox
+	 * @throws IOException
+	 */
+	public synchronized void validate(long uidValidity, long uidNext) throws IOException {
+		if (Long.toString(uidValidity).equals(state.getProperty("uidvalidity")))
+			return;
+		state.clear();
+		state.setProperty("uidvalidity", Long.toString(uidValidity));
+		state.setProperty("uidnext", Long.toString(uidNext));
+		save();
+	}
+
+	/**
+	 * Gets the highest UID that was already synced for {@link key}.
+	 * <p>
+	 * If {@link key} has never been synced, only email that arrived after the last
+	 * call of {@link #validate(long, long)} that reset the state is considered new.
+	 *
+	 * @param key key of the high-water mark
+	 * @return long highest synced UID of {@link key}
+	 */
+	public synchronized long getLastUid(String key) {
+		String uid = state.getProperty("uid." + key);
+		if (uid == null)
+			return Long.parseLong(state.getProperty("uidnext", "1")) - 1;
+		return Long.parseLong(uid);
+	}
+
+	/**
+	 * Sets the highest UID that was synced for {@link key} and saves the state.
+	 *
+	 * @param key key of the high-water mark
+	 * @param uid highest synced UID of {@link key}
+	 * @throws IOException
+	 */
+	public synchronized void setLastUid(String key, long uid) throws IOException {
+		if (uid <= getLastUid(key))
+			return;
+		state.setProperty("uid." + key, Long.toString(uid));
+		for (String name : state.stringPropertyNames())
+			if (name.startsWith("failures.") && Long.parseLong(name.substring(9)) <= uid)
+				state.remove(name);
+		save();
+	}
+
+	/**
+	 * Records a failed attempt to receive the email with UID {@link uid} and
+	 * saves the state.
+	 * <p>
+	 * The count is forgotten once a high-water mark is set to {@link uid} or
+	 * above with {@link #setLastUid(String, long)}.
+	 *
+	 * @param uid UID of the email that could not be received
+	 * @return int number of failed attempts to receive the email
+	 * @throws IOException
+	 */
+	public synchronized int addFailure(long uid) throws IOException {
+		String name = "failures." + uid;
+		int failures = Integer.parseInt(state.getProperty(name, "0")) + 1;
+		state.setProperty(name, Integer.toString(failures));
+		save();
+		return failures;
+	}
+
+	/**
+	 * Atomically replaces "userdata/{@link address}.sync" with the current state.
+	 *
+	 * @throws IOException
+	 */
+	private void save() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (OutputStream out = new FileOutputStream(temp)) {
+			state.store(out, null);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Checks if the email with Message-ID {@link messageId} was already received.
+	 *
+	 * @param messageId Message-ID header of the email
+	 * @return boolean if the email was marked with {@link #markSeen(String)}
+	 */
+	public boolean isSeen(String messageId) {
+		return messageId != null && seen.contains(messageId);
+	}
+
+	/**
+	 * Marks the email with Message-ID {@link messageId} as received.
+	 *
+	 * @param messageId Message-ID header of the email
+	 * @return boolean if the email was not already received
+	 */
+	public boolean markSeen(String messageId) {
+		return messageId == null || seen.add(messageId);
+	}
+}
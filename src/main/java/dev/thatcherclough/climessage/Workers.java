@@ -0,0 +1,257 @@
+package dev.thatcherclough.climessage;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Workers {
+
+	private static final boolean VIRTUAL = Settings.getBoolean("threads.virtual", false) && virtualSupported();
+	private static final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+	private static ExecutorService input = null;
+	private static ExecutorService receive = null;
+	private static ExecutorService lookup = null;
+	private static ThreadPoolExecutor send = null;
+	private static ScheduledExecutorService render = null;
+	private static ScheduledExecutorService scheduler = null;
+
+	static {
+		Metrics.gauge("send.queue", Workers::getSendQueueDepth);
+		Metrics.gauge("send.active", Workers::getSendActive);
+	}
+
+	/**
+	 * Gets the executor that reads keyboard input.
+	 *
+	 * @return ExecutorService with one thread per conversation reading input
+	 */
+	public static synchronized ExecutorService input() {
+		if (input == null)
+			input = register(Executors.newCachedThreadPool(factory("input")));
+		return input;
+	}
+
+	/**
+	 * Gets the executor that watches inboxes.
+	 *
+	 * @return ExecutorService with one thread per watched inbox
+	 */
+	public static synchronized ExecutorService receive() {
+		if (receive == null)
+			receive = register(Executors.newCachedThreadPool(factory("receive")));
+		return receive;
+	}
+
+	/**
+	 * Gets the executor that looks up carriers and opens connections.
+	 * <p>
+	 * It has setting "lookup.threads" threads, so a broadcast to many numbers
+	 * does not start a thread per number.
+	 *
+	 * @return ExecutorService of bounded lookup threads
+	 */
+	public static synchronized ExecutorService lookup() {
+		if (lookup == null)
+			lookup = register(Executors.newFixedThreadPool((int) Settings.getLong("lookup.threads", 8),
+					factory("lookup")));
+		return lookup;
+	}
+
+	/**
+	 * Gets the executor that sends email.
+	 * <p>
+	 * It has setting "send.workers" threads, so sends are bounded however many
+	 * conversations are open, and its queue depth and active count can be read
+	 * with {@link #getSendQueueDepth()} and {@link #getSendActive()}.
+	 *
+	 * @return ExecutorService of bounded send threads
+	 */
+	public static synchronized ExecutorService send() {
+		if (send == null) {
+			int threads = (int) Settings.getLong("send.workers", 2);
+			send = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads, factory("send"));
+			register(send);
+		}
+		return send;
+	}
+
+	/**
+	 * Gets the executor that draws the terminal.
+	 *
+	 * @return ScheduledExecutorService with one thread that owns terminal output
+	 */
+	public static synchronized ScheduledExecutorService render() {
+		if (render == null)
+			render = register(Executors.newSingleThreadScheduledExecutor(factory("render")));
+		return render;
+	}
+
+	/**
+	 * Gets the executor that runs delayed and periodic tasks such as keep-alives,
+	 * retries, and saves.
+	 *
+	 * @return ScheduledExecutorService with one thread
+	 */
+	public static synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null)
+			scheduler = register(Executors.newSingleThreadScheduledExecutor(factory("timer")));
+		return scheduler;
+	}
+
+	/**
+	 * Creates a new executor with {@link threads} threads named {@link name} that
+	 * is shut down with the others by {@link #shutdown(long)}, unless it is shut
+	 * down and terminates first.
+	 *
+	 * @param name    name of the threads
+	 * @param threads number of threads
+	 * @return ExecutorService with {@link threads} threads
+	 */
+	public static ExecutorService newPool(String name, int threads) {
+		return register(new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), factory(name)) {
+			@Override
+			protected void terminated() {
+				deregister(this);
+			}
+		});
+	}
+
+	/**
+	 * Gets the number of sends waiting for a send thread.
+	 *
+	 * @return int depth of the send queue
+	 */
+	public static synchronized int getSendQueueDepth() {
+		return send == null ? 0 : send.getQueue().size();
+	}
+
+	/**
+	 * Gets the number of send threads that are sending.
+	 *
+	 * @return int number of active send threads
+	 */
+	public static synchronized int getSendActive() {
+		return send == null ? 0 : send.getActiveCount();
+	}
+
+	/**
+	 * Checks if background work runs on virtual threads.
+	 *
+	 * @return boolean if setting "threads.virtual" is true and the JDK supports
+	 *         virtual threads
+	 */
+	public static boolean isVirtual() {
+		return VIRTUAL;
+	}
+
+	/**
+	 * Shuts down every executor.
+	 * <p>
+	 * Queued and running sends are given up to {@link timeoutMillis} milliseconds
+	 * to finish before the other executors are stopped. Executors that are asked
+	 * for afterwards are created again.
+	 *
+	 * @param timeoutMillis maximum time to wait for sends to finish
+	 * @throws InterruptedException
+	 */
+	public static void shutdown(long timeoutMillis) throws InterruptedException {
+		ExecutorService sends;
+		List<ExecutorService> all;
+		synchronized (Workers.class) {
+			sends = send;
+			all = new ArrayList<ExecutorService>(executors);
+		}
+		if (sends != null) {
+			sends.shutdown();
+			sends.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		for (ExecutorService executor : all)
+			executor.shutdownNow();
+		synchronized (Workers.class) {
+			executors.removeAll(all);
+			if (all.contains(input))
+				input = null;
+			if (all.contains(receive))
+				receive = null;
+			if (all.contains(lookup))
+				lookup = null;
+			if (all.contains(send))
+				send = null;
+			if (all.contains(render))
+				render = null;
+			if (all.contains(scheduler))
+				scheduler = null;
+		}
+	}
+
+	/**
+	 * Keeps track of {@link executor} so {@link #shutdown(long)} stops it.
+	 *
+	 * @param executor executor to keep track of
+	 * @return {@link executor}
+	 */
+	private static synchronized <T extends ExecutorService> T register(T executor) {
+		executors.add(executor);
+		return executor;
+	}
+
+	/**
+	 * Stops keeping track of {@link executor}.
+	 *
+	 * @param executor executor that terminated
+	 */
+	private static synchronized void deregister(ExecutorService executor) {
+		executors.remove(executor);
+	}
+
+	/**
+	 * Creates a factory of daemon threads named "climessage-{@link name}-N".
+	 * <p>
+	 * If {@link #VIRTUAL} is true, the threads are virtual threads. They are
+	 * created through reflection so CLImessage still runs on Java 8.
+	 *
+	 * @param name name of the threads
+	 * @return ThreadFactory of named threads
+	 */
+	private static ThreadFactory factory(String name) {
+		if (VIRTUAL) {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+						"climessage-" + name + "-", 1L);
+				return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+			}
+		}
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, "climessage-" + name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Checks if the JDK supports virtual threads.
+	 *
+	 * @return boolean if {@link Thread} has method "ofVirtual"
+	 */
+	private static boolean virtualSupported() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			return ofVirtual != null;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
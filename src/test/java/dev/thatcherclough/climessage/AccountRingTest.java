@@ -0,0 +1,226 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import org.junit.Before;
+import org.junit.Test;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+public class AccountRingTest {
+
+	private static final int RECIPIENTS = 10000;
+
+	/**
+	 * Writes accounts that send through ports that refuse connections to
+	 * "userdata/creds.properties" for {@link Account#load()}. Each account has a
+	 * quota of one email a day.
+	 *
+	 * @throws Exception
+	 */
+	@Before
+	public void writeCreds() throws Exception {
+		new File("userdata").mkdirs();
+		List<String> lines = new ArrayList<String>();
+		for (int k = 1; k <= 3; k++)
+			lines.addAll(Arrays.asList("account." + k + ".address=account" + k + "@localhost",
+					"account." + k + ".smtp.host=127.0.0.1", "account." + k + ".smtp.port=" + k,
+					"account." + k + ".quota.per.day=1"));
+		Files.write(new File("userdata", "creds.properties").toPath(), lines, StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void routeListsEveryAccountOnce() {
+		AccountRing ring = new AccountRing(accounts(4));
+		for (int k = 0; k < 100; k++) {
+			List<Account> route = ring.route(recipient(k));
+			assertEquals(4, route.size());
+			assertEquals(4, new HashSet<Account>(route).size());
+		}
+	}
+
+	@Test
+	public void routeIsStable() {
+		List<Account> accounts = accounts(4);
+		AccountRing first = new AccountRing(accounts);
+		AccountRing second = new AccountRing(accounts);
+		for (int k = 0; k < 100; k++)
+			assertEquals(first.route(recipient(k)), second.route(recipient(k)));
+	}
+
+	@Test
+	public void recipientsAreSpreadEvenly() {
+		List<Account> accounts = accounts(4);
+		AccountRing ring = new AccountRing(accounts);
+		Map<Account, Integer> counts = new HashMap<Account, Integer>();
+		for (int k = 0; k < RECIPIENTS; k++)
+			counts.merge(ring.route(recipient(k)).get(0), 1, Integer::sum);
+		for (Account account : accounts) {
+			int count = counts.getOrDefault(account, 0);
+			assertTrue(account.getAddress() + " has " + count,
+					count > RECIPIENTS / 4 * 0.7 && count < RECIPIENTS / 4 * 1.3);
+		}
+	}
+
+	@Test
+	public void addingAnAccountOnlyMovesRecipientsToIt() {
+		List<Account> accounts = accounts(5);
+		AccountRing before = new AccountRing(accounts.subList(0, 4));
+		AccountRing after = new AccountRing(accounts);
+		int moved = 0;
+		for (int k = 0; k < RECIPIENTS; k++) {
+			Account was = before.route(recipient(k)).get(0);
+			Account is = after.route(recipient(k)).get(0);
+			if (is != was) {
+				assertEquals(accounts.get(4), is);
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, moved > RECIPIENTS / 5 * 0.7 && moved < RECIPIENTS / 5 * 1.3);
+	}
+
+	@Test
+	public void sendSkipsThrottledAccounts() throws Exception {
+		AccountRing ring = new AccountRing(Account.load());
+		List<Account> route = ring.route("5551234567@localhost");
+		route.get(0).throttle();
+		try {
+			ring.send("5551234567@localhost", "hello");
+			fail();
+		} catch (MessagingException e) {
+			assertTrue(e.toString(), e.getMessage().contains(", " + route.get(1).getSmtpPort() + ";"));
+		}
+	}
+
+	@Test
+	public void sendFailsOnceEveryAccountIsThrottled() throws Exception {
+		AccountRing ring = new AccountRing(Account.load());
+		for (Account account : ring.getAccounts())
+			account.throttle();
+		try {
+			ring.send("5551234567@localhost", "hello");
+			fail();
+		} catch (MessagingException e) {
+			assertEquals("Every account is throttled or out of quota", e.getMessage());
+		}
+	}
+
+	@Test
+	public void sendFailsOverOnTransientReplies() throws Exception {
+		List<Account> tried = new ArrayList<Account>();
+		AccountRing ring = refusingFirst(tried, 450, "450 4.2.1 Mailbox busy, try again later");
+		List<Account> route = ring.route("5551234567@localhost");
+		assertEquals(route.get(1), ring.send("5551234567@localhost", "hello"));
+		assertEquals(route.subList(0, 2), tried);
+	}
+
+	@Test
+	public void sendFailsAtOnceOnPermanentReplies() throws Exception {
+		List<Account> tried = new ArrayList<Account>();
+		AccountRing ring = refusingFirst(tried, 550, "550 5.1.1 No such user");
+		try {
+			ring.send("5551234567@localhost", "hello");
+			fail();
+		} catch (MessagingException e) {
+			assertEquals(1, tried.size());
+		}
+	}
+
+	@Test
+	public void failedSendsAreRefunded() throws Exception {
+		AccountRing ring = new AccountRing(Account.load());
+		for (int k = 0; k <= ring.getAccounts().size(); k++) {
+			try {
+				ring.send("5557654321@localhost", "hello");
+				fail();
+			} catch (MessagingException e) {
+				assertFalse(e.getMessage().startsWith("Every account"));
+			}
+		}
+	}
+
+	@Test
+	public void throttleRepliesAreRecognized() {
+		assertTrue(Account.isThrottled(sendFailed(421, "421 Service not available")));
+		assertTrue(Account.isThrottled(sendFailed(550, "550 5.4.5 Daily user sending quota exceeded")));
+		assertTrue(Account.isThrottled(new MessagingException("Rate limit exceeded")));
+		assertFalse(Account.isThrottled(sendFailed(554, "554 Message rejected")));
+		assertFalse(Account.isThrottled(new MessagingException("Couldn't connect to host")));
+		SendFailedException refused = new SendFailedException("Invalid Addresses",
+				new SMTPAddressFailedException(null, "RCPT TO", 452, "452 Too many recipients"));
+		assertFalse(Account.isThrottled(refused));
+	}
+
+	/**
+	 * Creates accounts "account1@example.com" to "account{@link count}@example.com".
+	 *
+	 * @param count number of accounts
+	 * @return List of the accounts
+	 */
+	private static List<Account> accounts(int count) {
+		List<Account> ret = new ArrayList<Account>();
+		for (int k = 1; k <= count; k++)
+			ret.add(new Account("account" + k + "@example.com", "password"));
+		return ret;
+	}
+
+	/**
+	 * Gets the gateway address of the {@link k}th test recipient.
+	 *
+	 * @param k number of the recipient
+	 * @return String email address of the recipient
+	 */
+	private static String recipient(int k) {
+		return String.format("555%07d@vtext.com", k);
+	}
+
+	/**
+	 * Creates an AccountRing of the accounts of "userdata/creds.properties" that
+	 * refuses the recipient of the first email with reply {@link message} and
+	 * sends the others without connecting anywhere.
+	 *
+	 * @param tried   list to add each account an email is sent from to
+	 * @param code    reply code
+	 * @param message reply
+	 * @return AccountRing that refuses the first email
+	 * @throws Exception
+	 */
+	private static AccountRing refusingFirst(List<Account> tried, int code, String message) throws Exception {
+		return new AccountRing(Account.load()) {
+			@Override
+			void deliver(Account account, String recipient, String body) throws MessagingException {
+				tried.add(account);
+				if (tried.size() == 1)
+					throw new SendFailedException("Invalid Addresses",
+							new SMTPAddressFailedException(new InternetAddress(recipient), "RCPT TO", code, message));
+			}
+		};
+	}
+
+	/**
+	 * Creates the error of a server that refused an email with reply
+	 * {@link message}.
+	 *
+	 * @param code    reply code
+	 * @param message reply
+	 * @return SMTPSendFailedException of the reply
+	 */
+	private static SMTPSendFailedException sendFailed(int code, String message) {
+		return new SMTPSendFailedException("DATA", code, message, null, null, null, null);
+	}
+}
@@ -0,0 +1,129 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Properties;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import org.junit.Test;
+
+public class BodyExtractorTest {
+
+	private static final Session SESSION = Session.getInstance(new Properties());
+
+	@Test
+	public void plainTextIsRead() throws Exception {
+		MimeMessage email = new MimeMessage(SESSION);
+		email.setText("See you at 7", "UTF-8");
+		assertEquals("See you at 7", BodyExtractor.extract(parse(email)));
+	}
+
+	@Test
+	public void plainAlternativeIsPreferredOverHtml() throws Exception {
+		MimeMultipart alternative = new MimeMultipart("alternative");
+		alternative.addBodyPart(part("<p>html</p>", "text/html; charset=UTF-8", null));
+		alternative.addBodyPart(part("plain", "text/plain; charset=UTF-8", null));
+		BodyExtractor extractor = new BodyExtractor(parse(message(alternative)));
+		assertEquals("plain", extractor.getText());
+		assertTrue(extractor.getAttachments().isEmpty());
+	}
+
+	@Test
+	public void htmlIsStrippedToText() throws Exception {
+		MimeMessage email = new MimeMessage(SESSION);
+		email.setContent("<html><body><p>Hello <b>there</b></p></body></html>", "text/html; charset=UTF-8");
+		assertEquals("Hello there", BodyExtractor.extract(parse(email)));
+	}
+
+	@Test
+	public void mmsTextIsReadFromAttachedTextAndPicturesAreAttachments() throws Exception {
+		MimeMultipart mixed = new MimeMultipart("mixed");
+		mixed.addBodyPart(part("<smil></smil>", "application/smil", "mms.smil"));
+		mixed.addBodyPart(part("not really a picture", "image/jpeg", "IMG_0001.jpg"));
+		mixed.addBodyPart(part("Look at this", "text/plain; charset=UTF-8", "text_0.txt"));
+		BodyExtractor extractor = new BodyExtractor(parse(message(mixed)));
+		assertEquals("Look at this", extractor.getText());
+		List<Part> attachments = extractor.getAttachments();
+		assertEquals(1, attachments.size());
+		assertEquals("IMG_0001.jpg", attachments.get(0).getFileName());
+	}
+
+	@Test
+	public void textIsCutAtMaxBytesWithoutSplittingCharacters() throws Exception {
+		MimeMessage email = new MimeMessage(SESSION);
+		email.setText("héllo", "UTF-8");
+		Part parsed = parse(email);
+		assertEquals("hél", new BodyExtractor(parsed, 4).getText());
+		assertEquals("h", new BodyExtractor(parsed, 2).getText());
+	}
+
+	@Test
+	public void charsetOfPartIsUsed() throws Exception {
+		MimeMessage email = new MimeMessage(SESSION);
+		email.setText("café", "ISO-8859-1");
+		assertEquals("café", BodyExtractor.extract(parse(email)));
+	}
+
+	@Test
+	public void emailWithoutTextHasNone() throws Exception {
+		MimeMultipart mixed = new MimeMultipart("mixed");
+		mixed.addBodyPart(part("not really a picture", "image/png", "picture.png"));
+		BodyExtractor extractor = new BodyExtractor(parse(message(mixed)));
+		assertNull(extractor.getText());
+		assertEquals(1, extractor.getAttachments().size());
+	}
+
+	/**
+	 * Creates a body part of {@link content} with content type {@link type}.
+	 *
+	 * @param content  content of the part
+	 * @param type     content type of the part
+	 * @param fileName file name to attach the part as, or null for an inline part
+	 * @return MimeBodyPart of {@link content}
+	 * @throws Exception
+	 */
+	private static MimeBodyPart part(String content, String type, String fileName) throws Exception {
+		MimeBodyPart part = new MimeBodyPart();
+		part.setContent(content, type);
+		if (fileName != null) {
+			part.setDisposition(Part.ATTACHMENT);
+			part.setFileName(fileName);
+		}
+		return part;
+	}
+
+	/**
+	 * Creates an email of {@link multipart}.
+	 *
+	 * @param multipart content of the email
+	 * @return MimeMessage of {@link multipart}
+	 * @throws Exception
+	 */
+	private static MimeMessage message(MimeMultipart multipart) throws Exception {
+		MimeMessage email = new MimeMessage(SESSION);
+		email.setContent(multipart);
+		return email;
+	}
+
+	/**
+	 * Writes {@link email} and parses it again, as it would be received.
+	 *
+	 * @param email email to write
+	 * @return MimeMessage parsed from the written {@link email}
+	 * @throws Exception
+	 */
+	private static MimeMessage parse(MimeMessage email) throws Exception {
+		email.saveChanges();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		email.writeTo(out);
+		return new MimeMessage(SESSION, new ByteArrayInputStream(out.toByteArray()));
+	}
+}
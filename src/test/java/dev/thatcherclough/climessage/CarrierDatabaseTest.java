@@ -0,0 +1,57 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CarrierDatabaseTest {
+
+	@BeforeClass
+	public static void importPrefixes() throws Exception {
+		new File("userdata").mkdirs();
+		File csv = File.createTempFile("carriers", ".csv");
+		csv.deleteOnExit();
+		Files.write(csv.toPath(), Arrays.asList("NPA,NXX,X,Company", "201,200,,AT&T Mobility", "555,123,4,T-Mobile USA",
+				"555,123,*,Verizon Wireless", "555,123,4,Sprint", "555,124,0,Cricket Wireless", "989,999,9,Metro PCS",
+				"555,125,1,Unknown Telephone", "abc,def,Verizon"), StandardCharsets.UTF_8);
+		assertEquals(5, CarrierDatabase.importCsv(csv));
+	}
+
+	@Test
+	public void lookupFindsBlock() {
+		assertEquals("tmobile", CarrierDatabase.lookup("5551234567"));
+		assertEquals("cricket", CarrierDatabase.lookup("5551240000"));
+	}
+
+	@Test
+	public void lookupFallsBackToWholeNxx() {
+		assertEquals("verizon", CarrierDatabase.lookup("5551230000"));
+		assertEquals("verizon", CarrierDatabase.lookup("5551239999"));
+	}
+
+	@Test
+	public void lookupFindsFirstAndLastRecords() {
+		assertEquals("att", CarrierDatabase.lookup("2012001234"));
+		assertEquals("metropcs", CarrierDatabase.lookup("9899999999"));
+	}
+
+	@Test
+	public void lookupMissesUnknownPrefixes() {
+		assertNull(CarrierDatabase.lookup("5551241234"));
+		assertNull(CarrierDatabase.lookup("5551251234"));
+		assertNull(CarrierDatabase.lookup("1000000000"));
+		assertNull(CarrierDatabase.lookup("9999999999"));
+	}
+
+	@Test
+	public void lookupRejectsMalformedNumbers() {
+		assertNull(CarrierDatabase.lookup("555123"));
+		assertNull(CarrierDatabase.lookup("555-123-4567"));
+	}
+}
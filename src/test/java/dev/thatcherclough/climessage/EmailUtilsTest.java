@@ -0,0 +1,32 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class EmailUtilsTest {
+
+	private static final List<String> SENDERS = Arrays.asList("5551234567", "5557654321");
+
+	@Test
+	public void getSenderMatchesLocalPart() {
+		assertEquals("5551234567", EmailUtils.getSender("5551234567@vtext.com", SENDERS));
+		assertEquals("5557654321", EmailUtils.getSender("5557654321@tmomail.net", SENDERS));
+	}
+
+	@Test
+	public void getSenderAcceptsCountryCode() {
+		assertEquals("5551234567", EmailUtils.getSender("15551234567@mms.att.net", SENDERS));
+	}
+
+	@Test
+	public void getSenderRejectsSubstrings() {
+		assertNull(EmailUtils.getSender("95551234567@vtext.com", SENDERS));
+		assertNull(EmailUtils.getSender("555123456@vtext.com", SENDERS));
+		assertNull(EmailUtils.getSender("someone@5551234567.com", SENDERS));
+		assertNull(EmailUtils.getSender("5551234567x@vtext.com", SENDERS));
+	}
+}
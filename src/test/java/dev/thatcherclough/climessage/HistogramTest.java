@@ -0,0 +1,85 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void emptySnapshotIsZero() {
+		Histogram.Snapshot snapshot = new Histogram().snapshot();
+		assertEquals(0, snapshot.getCount());
+		assertEquals(0, snapshot.getMeanMicros());
+		assertEquals(0, snapshot.getP50Micros());
+		assertEquals(0, snapshot.getP99Micros());
+		assertEquals(0, snapshot.getMaxMicros());
+	}
+
+	@Test
+	public void smallDurationsAreExact() {
+		Histogram histogram = new Histogram();
+		for (int micros = 0; micros < 8; micros++)
+			histogram.record(micros);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(8, snapshot.getCount());
+		assertEquals(3, snapshot.getMeanMicros());
+		assertEquals(3, snapshot.getP50Micros());
+		assertEquals(7, snapshot.getP99Micros());
+		assertEquals(7, snapshot.getMaxMicros());
+	}
+
+	/**
+	 * Records each duration next to a much larger one, so the median is the upper
+	 * bound of the bucket of the duration, and checks that it is within 25% above
+	 * it.
+	 */
+	@Test
+	public void bucketsAreWithinQuarter() {
+		for (int exponent = 3; exponent < 50; exponent++) {
+			long start = 1L << exponent;
+			for (long micros : new long[] { start, start + 1, start * 5 / 4 - 1, start * 5 / 4, start * 3 / 2,
+					start * 7 / 4, start * 2 - 1 }) {
+				Histogram histogram = new Histogram();
+				histogram.record(micros);
+				histogram.record(Long.MAX_VALUE / 2);
+				long p50 = histogram.snapshot().getP50Micros();
+				assertTrue(micros + " in bucket up to " + p50, p50 >= micros && p50 <= micros + micros / 4);
+			}
+		}
+	}
+
+	@Test
+	public void percentilesAreCappedByMax() {
+		Histogram histogram = new Histogram();
+		histogram.record(1000);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(1000, snapshot.getP50Micros());
+		assertEquals(1000, snapshot.getP99Micros());
+		assertEquals(1000, snapshot.getMaxMicros());
+	}
+
+	@Test
+	public void p99SkipsOutliersBelowOnePercent() {
+		Histogram histogram = new Histogram();
+		for (int k = 0; k < 99; k++)
+			histogram.record(5);
+		histogram.record(1_000_000);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(5, snapshot.getP50Micros());
+		assertEquals(5, snapshot.getP99Micros());
+		assertEquals(1_000_000, snapshot.getMaxMicros());
+	}
+
+	@Test
+	public void extremesAreRecorded() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(2, snapshot.getCount());
+		assertEquals(0, snapshot.getP50Micros());
+		assertEquals(Long.MAX_VALUE, snapshot.getP99Micros());
+	}
+}
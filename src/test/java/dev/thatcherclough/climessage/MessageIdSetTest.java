@@ -0,0 +1,37 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MessageIdSetTest {
+
+	@Test
+	public void addRejectsDuplicates() {
+		MessageIdSet set = new MessageIdSet(16);
+		assertTrue(set.add("<a@mail>"));
+		assertTrue(set.add("<b@mail>"));
+		assertFalse(set.add("<a@mail>"));
+		assertTrue(set.contains("<a@mail>"));
+		assertFalse(set.contains("<c@mail>"));
+	}
+
+	@Test
+	public void remembersAtLeastCapacity() {
+		MessageIdSet set = new MessageIdSet(100);
+		for (int k = 0; k < 1000; k++)
+			assertTrue(set.add("<" + k + "@mail>"));
+		for (int k = 900; k < 1000; k++)
+			assertTrue("<" + k + "@mail>", set.contains("<" + k + "@mail>"));
+	}
+
+	@Test
+	public void forgetsOldestOnceFull() {
+		MessageIdSet set = new MessageIdSet(8);
+		for (int k = 0; k < 100; k++)
+			set.add("<" + k + "@mail>");
+		assertFalse(set.contains("<0@mail>"));
+		assertTrue(set.add("<0@mail>"));
+	}
+}
@@ -0,0 +1,118 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class MessageWindowTest {
+
+	private static final int CAPACITY = 64;
+	private static final int WRITERS = 4;
+	private static final int READERS = 4;
+	private static final int MESSAGES_PER_WRITER = 50000;
+
+	@Test
+	public void addEvictsOldest() {
+		MessageWindow window = new MessageWindow(3);
+		for (int k = 1; k <= 5; k++)
+			window.add(Integer.toString(k));
+		assertEquals(Arrays.asList("5", "4", "3"), window.get(0, 10));
+		assertEquals(Arrays.asList("4"), window.get(1, 1));
+		assertEquals(3, window.size());
+	}
+
+	@Test
+	public void addOldestFillsUntilFull() {
+		MessageWindow window = new MessageWindow(2);
+		window.add("newest");
+		assertTrue(window.addOldest("older"));
+		assertFalse(window.addOldest("oldest"));
+		assertEquals(Arrays.asList("newest", "older"), window.get(0, 10));
+	}
+
+	@Test
+	public void replaceMatchesKeyNotText() {
+		MessageWindow window = new MessageWindow(4);
+		window.add("a", "1");
+		window.add("b");
+		window.add("a", "2");
+		assertTrue(window.replace("1", "c"));
+		assertEquals(Arrays.asList("a", "b", "c"), window.get(0, 10));
+		assertFalse(window.replace("1", "d"));
+		assertFalse(window.replace("a", "d"));
+	}
+
+	/**
+	 * Writers add consecutive numbers while readers take pages. Every page has to
+	 * be a run of consecutive numbers, newest first, since a torn page or one
+	 * mixing slots from before and after a write would have a gap or a repeat.
+	 */
+	@Test
+	public void readersNeverSeeTornPages() throws Exception {
+		MessageWindow window = new MessageWindow(CAPACITY);
+		long[] next = { 0 };
+		AtomicBoolean writing = new AtomicBoolean(true);
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService threads = Executors.newFixedThreadPool(WRITERS + READERS);
+		List<Future<?>> writers = new ArrayList<Future<?>>();
+		List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+		try {
+			for (int w = 0; w < WRITERS; w++)
+				writers.add(threads.submit(() -> {
+					start.await();
+					for (int k = 0; k < MESSAGES_PER_WRITER; k++) {
+						synchronized (window) {
+							window.add(Long.toString(next[0]++));
+						}
+					}
+					return null;
+				}));
+			for (int r = 0; r < READERS; r++) {
+				int skip = r;
+				readers.add(threads.submit(() -> {
+					start.await();
+					int pages = 0;
+					while (writing.get()) {
+						assertConsecutive(window.get(skip, CAPACITY / 2));
+						pages++;
+					}
+					return pages;
+				}));
+			}
+			start.countDown();
+			for (Future<?> writer : writers)
+				writer.get(60, TimeUnit.SECONDS);
+			writing.set(false);
+			for (Future<Integer> reader : readers)
+				assertTrue(reader.get(60, TimeUnit.SECONDS) > 0);
+		} finally {
+			writing.set(false);
+			threads.shutdownNow();
+		}
+		List<String> last = window.get(0, CAPACITY);
+		assertEquals(CAPACITY, last.size());
+		assertEquals(Long.toString((long) WRITERS * MESSAGES_PER_WRITER - 1), last.get(0));
+		assertConsecutive(last);
+	}
+
+	/**
+	 * Asserts that {@link page} holds consecutive numbers, newest first.
+	 *
+	 * @param page page of a window that numbers were added to in order
+	 */
+	private static void assertConsecutive(List<String> page) {
+		for (int k = 1; k < page.size(); k++)
+			assertEquals("page " + page, Long.parseLong(page.get(k - 1)) - 1, Long.parseLong(page.get(k)));
+	}
+}
@@ -0,0 +1,111 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import org.junit.Before;
+import org.junit.Test;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+public class OutboundQueueTest {
+
+	private static final String RECIPIENT = "5551234567@vtext.com";
+
+	@Before
+	public void createUserdata() {
+		new File("userdata").mkdirs();
+	}
+
+	@Test
+	public void transientRefusalIsRetried() throws Exception {
+		OutboundMessage message = send(refusing(1, 450, "450 4.2.1 Mailbox busy, try again later"));
+		assertEquals("sent", message.getStatus());
+		assertEquals(2, message.getAttempts());
+	}
+
+	@Test
+	public void permanentRefusalFails() throws Exception {
+		OutboundMessage message = send(refusing(1, 550, "550 5.1.1 No such user"));
+		assertEquals("failed", message.getStatus());
+		assertEquals(1, message.getAttempts());
+	}
+
+	@Test
+	public void repliesAreClassifiedByCode() {
+		assertTrue(Account.isPermanent(addressFailed(550, "550 5.1.1 No such user")));
+		assertTrue(Account.isPermanent(new SMTPSendFailedException("DATA", 554, "554 Message rejected", null,
+				null, null, null)));
+		assertTrue(Account.isPermanent(new SendFailedException("No recipient addresses")));
+		assertFalse(Account.isPermanent(addressFailed(450, "450 4.2.1 Mailbox busy")));
+		assertFalse(Account.isPermanent(new SMTPSendFailedException("DATA", 451, "451 4.3.0 Try again later",
+				null, null, null, null)));
+		assertFalse(Account.isPermanent(new MessagingException("Couldn't connect to host")));
+	}
+
+	/**
+	 * Creates an AccountRing of an account of its own whose first {@link times}
+	 * sends are refused with reply {@link message} to the recipient, and whose
+	 * sends after that succeed.
+	 *
+	 * @param times   number of sends to refuse
+	 * @param code    reply code
+	 * @param message reply
+	 * @return AccountRing that refuses the first {@link times} sends
+	 */
+	private static AccountRing refusing(int times, int code, String message) {
+		Account account = new Account("queue" + System.nanoTime() + "@localhost", "password");
+		AtomicInteger sends = new AtomicInteger();
+		return new AccountRing(Collections.singletonList(account)) {
+			@Override
+			public Account send(String recipient, String body) throws MessagingException {
+				if (sends.incrementAndGet() <= times)
+					throw addressFailed(code, message);
+				return account;
+			}
+		};
+	}
+
+	/**
+	 * Enqueues a message to {@link #RECIPIENT} on the OutboundQueue of
+	 * {@link accounts} and waits for its outcome.
+	 *
+	 * @param accounts accounts to send from
+	 * @return OutboundMessage once it was sent or failed
+	 * @throws Exception
+	 */
+	private static OutboundMessage send(AccountRing accounts) throws Exception {
+		File log = new File("userdata", accounts.getAccounts().get(0).getAddress() + "-5551234567.convo");
+		CompletableFuture<OutboundMessage> outcome = new CompletableFuture<OutboundMessage>();
+		OutboundQueue queue = OutboundQueue.get(accounts);
+		queue.setListener(log, outcome::complete);
+		queue.enqueue(log, RECIPIENT, "hello");
+		return outcome.get(30, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Creates the error of a server that refused {@link #RECIPIENT} with reply
+	 * {@link message}, as sending the email throws it.
+	 *
+	 * @param code    reply code
+	 * @param message reply
+	 * @return SendFailedException of the reply
+	 */
+	private static SendFailedException addressFailed(int code, String message) {
+		try {
+			return new SendFailedException("Invalid Addresses",
+					new SMTPAddressFailedException(new InternetAddress(RECIPIENT), "RCPT TO", code, message));
+		} catch (MessagingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SearchIndexTest {
+
+	private static final String DINNER = "See you at dinner  -  [received] [01/15/2020 18:00:00]";
+	private static final String LUNCH = "Lunch then dinner?  -  [sent] [06/01/2020 12:00:00]";
+	private static final String MOVIE = "Dinner and a movie  -  [received] [12/31/2021 20:00:00]";
+	private static final String SENT = "  -  [sent] [02/02/2020 10:00:00]";
+	private static final int NOTES = 3000;
+
+	private static SearchIndex index;
+
+	@BeforeClass
+	public static void indexConversations() throws Exception {
+		File userdata = new File("userdata");
+		userdata.mkdirs();
+		Files.write(new File(userdata, "Alice-5551234567.convo").toPath(), Arrays.asList(DINNER, LUNCH),
+				StandardCharsets.UTF_8);
+		Files.write(new File(userdata, "Bob-5557654321.convo").toPath(), Collections.singletonList(MOVIE),
+				StandardCharsets.UTF_8);
+		List<String> notes = new ArrayList<String>();
+		for (int k = 0; k < NOTES; k++)
+			notes.add("note" + k + " of a long conversation" + SENT);
+		notes.add("giraffe " + new String(new char[100000]).replace('\0', 'x') + SENT);
+		notes.add("zebra" + SENT);
+		Files.write(new File(userdata, "Carol-5550001111.convo").toPath(), notes, StandardCharsets.UTF_8);
+		index = SearchIndex.get();
+		index.rebuild();
+	}
+
+	@Test
+	public void termsMustAllMatch() throws Exception {
+		assertEquals(Arrays.asList("Bob: " + MOVIE, "Alice: " + LUNCH, "Alice: " + DINNER), index.search("dinner"));
+		assertEquals(Arrays.asList("Alice: " + LUNCH), index.search("DINNER lunch"));
+		assertTrue(index.search("dinner breakfast").isEmpty());
+	}
+
+	@Test
+	public void quotedTextMustMatchAsPhrase() throws Exception {
+		assertEquals(Arrays.asList("Alice: " + DINNER), index.search("\"at dinner\""));
+		assertTrue(index.search("\"dinner at\"").isEmpty());
+	}
+
+	@Test
+	public void datesLimitResults() throws Exception {
+		assertEquals(Arrays.asList("Bob: " + MOVIE, "Alice: " + LUNCH), index.search("dinner after:06/01/2020"));
+		assertEquals(Arrays.asList("Alice: " + DINNER), index.search("dinner before:01/15/2020"));
+		List<String> between = index.search("dinner after:01/16/2020 before:12/30/2021");
+		assertEquals(Arrays.asList("Alice: " + LUNCH), between);
+	}
+
+	@Test
+	public void queryWithoutTermsMatchesNothing() throws Exception {
+		assertTrue(index.search("").isEmpty());
+		assertTrue(index.search("after:01/01/2020").isEmpty());
+	}
+
+	@Test
+	public void linesAcrossChunksAreIndexed() throws Exception {
+		for (int k = 0; k < NOTES; k++)
+			assertEquals(Arrays.asList("Carol: note" + k + " of a long conversation" + SENT),
+					index.search("note" + k));
+		List<String> giraffe = index.search("giraffe");
+		assertEquals(1, giraffe.size());
+		assertTrue(giraffe.get(0).startsWith("Carol: giraffe xxx"));
+		assertEquals(Arrays.asList("Carol: zebra" + SENT), index.search("zebra"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidDateIsRejected() throws Exception {
+		index.search("dinner after:2020-01-01");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void impossibleDateIsRejected() throws Exception {
+		index.search("dinner before:13/45/2020");
+	}
+}
@@ -0,0 +1,89 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class SmsSegmenterTest {
+
+	private static final String EMOJI = "😀";
+
+	@Test
+	public void gsm7CoversBasicAndExtensionTables() {
+		assertTrue(SmsSegmenter.isGsm7("Hello, world! @£$¥ èéùìò ÄÖÑÜ§ äöñüà\n"));
+		assertTrue(SmsSegmenter.isGsm7("€[]{}\\^~|"));
+		assertFalse(SmsSegmenter.isGsm7("á"));
+		assertFalse(SmsSegmenter.isGsm7("привет"));
+		assertFalse(SmsSegmenter.isGsm7("hi " + EMOJI));
+	}
+
+	@Test
+	public void lengthCountsExtensionsTwiceAndSurrogatesAsUnits() {
+		assertEquals(5, SmsSegmenter.length("hello"));
+		assertEquals(4, SmsSegmenter.length("a€b"));
+		assertEquals(3, SmsSegmenter.length("a" + EMOJI));
+		assertEquals(3, SmsSegmenter.length("€" + EMOJI));
+	}
+
+	@Test
+	public void singleMessagesAreNotSplit() {
+		assertEquals(Collections.singletonList(repeat("a", 160)), SmsSegmenter.split(repeat("a", 160)));
+		assertEquals(Collections.singletonList(repeat("€", 80)), SmsSegmenter.split(repeat("€", 80)));
+		assertEquals(Collections.singletonList(repeat("ж", 70)), SmsSegmenter.split(repeat("ж", 70)));
+		assertEquals(Collections.singletonList(""), SmsSegmenter.split(""));
+	}
+
+	@Test
+	public void gsm7IsSplitInto153Septets() {
+		assertEquals(Arrays.asList(repeat("a", 153), repeat("a", 8)), SmsSegmenter.split(repeat("a", 161)));
+		assertEquals(Arrays.asList(repeat("€", 76), repeat("€", 5)), SmsSegmenter.split(repeat("€", 81)));
+	}
+
+	@Test
+	public void ucs2IsSplitInto67Units() {
+		assertEquals(Arrays.asList(repeat("ж", 67), repeat("ж", 4)), SmsSegmenter.split(repeat("ж", 71)));
+	}
+
+	@Test
+	public void partsEndAtWhitespace() {
+		String text = repeat("word ", 40);
+		List<String> parts = SmsSegmenter.split(text);
+		assertEquals(text, String.join("", parts));
+		for (String part : parts) {
+			assertTrue(part, SmsSegmenter.length(part) <= 153);
+			assertTrue(part, part.endsWith(" "));
+		}
+	}
+
+	@Test
+	public void surrogatePairsAreNeverSplit() {
+		String text = repeat(EMOJI, 100);
+		List<String> parts = SmsSegmenter.split(text);
+		assertEquals(text, String.join("", parts));
+		assertEquals(4, parts.size());
+		for (String part : parts) {
+			assertTrue(SmsSegmenter.length(part) <= 67);
+			assertFalse(Character.isHighSurrogate(part.charAt(part.length() - 1)));
+			assertFalse(Character.isLowSurrogate(part.charAt(0)));
+		}
+	}
+
+	/**
+	 * Repeats {@link text} {@link count} times.
+	 *
+	 * @param text  text to repeat
+	 * @param count number of times
+	 * @return String of {@link count} times {@link text}
+	 */
+	private static String repeat(String text, int count) {
+		StringBuilder ret = new StringBuilder();
+		for (int k = 0; k < count; k++)
+			ret.append(text);
+		return ret.toString();
+	}
+}
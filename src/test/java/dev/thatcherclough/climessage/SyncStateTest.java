@@ -0,0 +1,38 @@
+package dev.thatcherclough.climessage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SyncStateTest {
+
+	private SyncState state;
+
+	/**
+	 * Creates a SyncState of an address of its own, stored in "userdata".
+	 */
+	@Before
+	public void createState() {
+		new File("userdata").mkdirs();
+		state = SyncState.get("sync" + System.nanoTime() + "@localhost");
+	}
+
+	@Test
+	public void failuresAreCountedPerUid() throws Exception {
+		assertEquals(1, state.addFailure(5));
+		assertEquals(2, state.addFailure(5));
+		assertEquals(1, state.addFailure(7));
+	}
+
+	@Test
+	public void failuresAreForgottenOnceTheMarkPassesThem() throws Exception {
+		state.addFailure(5);
+		state.addFailure(7);
+		state.setLastUid("inbox", 5);
+		assertEquals(5, state.getLastUid("inbox"));
+		assertEquals(1, state.addFailure(5));
+		assertEquals(2, state.addFailure(7));
+	}
+}